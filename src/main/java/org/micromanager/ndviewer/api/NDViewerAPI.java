@@ -32,6 +32,21 @@ public interface NDViewerAPI {
     */
    void newImageArrived(HashMap<String, Object> axes);
 
+   /**
+    * Call this when many images are available at once, e.g. when opening a
+    * saved dataset. Equivalent to calling {@link #newImageArrived} for each
+    * of them, which is what this does unless the viewer can do better, e.g.
+    * by only updating the GUI once.
+    *
+    * @param axesList axes of each image. A stream can be passed as
+    *                 {@code stream::iterator}
+    */
+   default void newImagesArrived(Iterable<HashMap<String, Object>> axesList) {
+      for (HashMap<String, Object> axes : axesList) {
+         newImageArrived(axes);
+      }
+   }
+
    /**
     * Add a hook function that runs whenever setImage gets called,
     * either programatically or by someone moving the scrollbars
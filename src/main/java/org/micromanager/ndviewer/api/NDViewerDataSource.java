@@ -7,6 +7,8 @@ package org.micromanager.ndviewer.api;
 
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import mmcorej.TaggedImage;
 
@@ -47,6 +49,31 @@ public interface NDViewerDataSource {
            int resolutionindex, double xOffset, double yOffset,
            int imageWidth, int imageHeight);
 
+   /**
+    * Asynchronous version of {@link #getImageForDisplay}. The viewer uses this
+    * to request all channels of a frame at once, and cancels the returned
+    * future if the request has been made obsolete by a newer one.
+    *
+    * The default implementation runs the blocking
+    * {@link #getImageForDisplay} call on the supplied executor. Data sources
+    * with their own asynchronous I/O can override this and ignore the executor.
+    *
+    * @param axes Map of axes to indices (see {@link #getImageForDisplay})
+    * @param resolutionindex Index in level of multiresolution pyramid
+    * @param xOffset leftmost pixel at the requested resolution
+    * @param yOffset rightmost pixel at the requested resolution
+    * @param imageWidth pixel width of the image at the requested resolution
+    * @param imageHeight pixel height of the image at the requested resolution
+    * @param executor executor provided by the viewer for blocking reads
+    * @return a future for the image, which may be cancelled by the viewer
+    */
+   public default Future<TaggedImage> getImageForDisplayAsync(HashMap<String, Object> axes,
+           int resolutionindex, double xOffset, double yOffset,
+           int imageWidth, int imageHeight, ExecutorService executor) {
+      return executor.submit(() -> getImageForDisplay(axes, resolutionindex,
+              xOffset, yOffset, imageWidth, imageHeight));
+   }
+
    /**
     * Get the axes of all available images in this dataset
     * @return
@@ -0,0 +1,336 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable set of axes positions, for use as a key in place of a
+ * {@code HashMap<String, Object>}. Axis names and non integer positions
+ * (e.g. channel names) are interned to small integer ids shared by all keys,
+ * so a key is mainly two primitive arrays sorted by axis id and a precomputed
+ * hash, and comparing keys doesn't touch any strings. Use {@link #of} and
+ * {@link #toMap} to convert to and from the maps of the API.
+ *
+ * Positions are only interned for as long as some key has them, so that
+ * opening many datasets doesn't keep the labels of all of them around.
+ */
+public final class AxesKey {
+
+   // Integer positions are stored as themselves, other positions as their interned
+   // id offset by this, so the two can't collide
+   private static final long INTERNED_OFFSET = Long.MIN_VALUE;
+
+   private static final ConcurrentHashMap<String, Integer> axisIds_ = new ConcurrentHashMap<String, Integer>();
+   // Indexed by id, and grown by doubling under the monitor on AxesKey.class. Reassigned
+   // after every new name, so that it is visible to anyone who has its id
+   private static volatile String[] axisNames_ = new String[8];
+   private static int numAxisNames_ = 0;
+
+   // Interned positions by value. Entries whose position no key has any more are
+   // released, and their ids reused, the next time a position is interned
+   private static final ConcurrentHashMap<Object, InternedRef> valueIds_ = new ConcurrentHashMap<Object, InternedRef>();
+   private static final ReferenceQueue<Interned> unusedValues_ = new ReferenceQueue<Interned>();
+   // Guarded by monitor on AxesKey.class
+   private static int[] freeValueIds_ = new int[8];
+   private static int numFreeValueIds_ = 0;
+   private static int nextValueId_ = 0;
+
+   /**
+    * An interned position, which keys with it hold on to
+    */
+   private static final class Interned {
+      final Object value;
+      final int id;
+
+      Interned(Object value, int id) {
+         this.value = value;
+         this.id = id;
+      }
+   }
+
+   private static final class InternedRef extends WeakReference<Interned> {
+      final Object value;
+      final int id;
+
+      InternedRef(Interned interned) {
+         super(interned, unusedValues_);
+         value = interned.value;
+         id = interned.id;
+      }
+   }
+
+   public static final AxesKey EMPTY = new AxesKey(new int[0], new long[0], null);
+
+   private final int[] axes_;
+   private final long[] positions_;
+   // Interned positions, at the same indices as in positions_. Null if there are none
+   private final Interned[] interned_;
+   private final int hash_;
+
+   private AxesKey(int[] axes, long[] positions, Interned[] interned) {
+      axes_ = axes;
+      positions_ = positions;
+      interned_ = interned;
+      hash_ = 31 * Arrays.hashCode(axes) + Arrays.hashCode(positions);
+   }
+
+   /**
+    * @param axes map of axis names to integer positions or other (e.g. String) labels
+    * @return key with the same axes and positions
+    */
+   public static AxesKey of(Map<String, ?> axes) {
+      if (axes.isEmpty()) {
+         return EMPTY;
+      }
+      int n = axes.size();
+      long[] packed = new long[n];
+      Object[] values = new Object[n];
+      int i = 0;
+      for (Map.Entry<String, ?> e : axes.entrySet()) {
+         // Sort by axis id, with the index into values in the low bits
+         packed[i] = ((long) axisId(e.getKey()) << 32) | i;
+         values[i] = e.getValue();
+         i++;
+      }
+      Arrays.sort(packed);
+      int[] ids = new int[n];
+      long[] positions = new long[n];
+      Interned[] interned = null;
+      for (i = 0; i < n; i++) {
+         ids[i] = (int) (packed[i] >>> 32);
+         Object value = values[(int) packed[i]];
+         if (value instanceof Integer) {
+            positions[i] = (Integer) value;
+         } else {
+            if (interned == null) {
+               interned = new Interned[n];
+            }
+            interned[i] = intern(value);
+            positions[i] = INTERNED_OFFSET + interned[i].id;
+         }
+      }
+      return new AxesKey(ids, positions, interned);
+   }
+
+   /**
+    * @return a new map of axis names to positions
+    */
+   public HashMap<String, Object> toMap() {
+      HashMap<String, Object> map = new HashMap<String, Object>();
+      String[] names = axisNames_;
+      for (int i = 0; i < axes_.length; i++) {
+         map.put(names[axes_[i]], decode(i));
+      }
+      return map;
+   }
+
+   public int size() {
+      return axes_.length;
+   }
+
+   public boolean contains(String axis) {
+      return indexOf(axis) >= 0;
+   }
+
+   /**
+    * @return position along the axis, or null if this key doesn't have it
+    */
+   public Object get(String axis) {
+      int index = indexOf(axis);
+      return index < 0 ? null : decode(index);
+   }
+
+   /**
+    * @return key with the position along an axis added or replaced
+    */
+   public AxesKey with(String axis, Object position) {
+      int id = axisId(axis);
+      Interned value = null;
+      long encoded;
+      if (position instanceof Integer) {
+         encoded = (Integer) position;
+      } else {
+         value = intern(position);
+         encoded = INTERNED_OFFSET + value.id;
+      }
+      int index = Arrays.binarySearch(axes_, id);
+      if (index >= 0) {
+         if (positions_[index] == encoded) {
+            return this;
+         }
+         long[] positions = positions_.clone();
+         positions[index] = encoded;
+         Interned[] interned = interned_ == null ? null : interned_.clone();
+         if (value != null) {
+            interned = interned == null ? new Interned[positions.length] : interned;
+            interned[index] = value;
+         } else if (interned != null) {
+            interned[index] = null;
+         }
+         return new AxesKey(axes_, positions, interned);
+      }
+      int insert = -index - 1;
+      int[] axes = new int[axes_.length + 1];
+      long[] positions = new long[axes_.length + 1];
+      System.arraycopy(axes_, 0, axes, 0, insert);
+      System.arraycopy(positions_, 0, positions, 0, insert);
+      axes[insert] = id;
+      positions[insert] = encoded;
+      System.arraycopy(axes_, insert, axes, insert + 1, axes_.length - insert);
+      System.arraycopy(positions_, insert, positions, insert + 1, axes_.length - insert);
+      Interned[] interned = null;
+      if (interned_ != null || value != null) {
+         interned = new Interned[axes.length];
+         if (interned_ != null) {
+            System.arraycopy(interned_, 0, interned, 0, insert);
+            System.arraycopy(interned_, insert, interned, insert + 1, axes_.length - insert);
+         }
+         interned[insert] = value;
+      }
+      return new AxesKey(axes, positions, interned);
+   }
+
+   /**
+    * @return key without the given axis
+    */
+   public AxesKey without(String axis) {
+      int index = indexOf(axis);
+      if (index < 0) {
+         return this;
+      }
+      return removeAt(index);
+   }
+
+   /**
+    * @param keep axes to keep
+    * @param alsoKeep another axis to keep, or null
+    * @return key without the axes that aren't in either
+    */
+   public AxesKey retainAxes(Set<String> keep, String alsoKeep) {
+      String[] names = axisNames_;
+      AxesKey result = this;
+      for (int i = axes_.length - 1; i >= 0; i--) {
+         String name = names[axes_[i]];
+         if (!name.equals(alsoKeep) && !keep.contains(name)) {
+            result = result.removeAt(i);
+         }
+      }
+      return result;
+   }
+
+   private AxesKey removeAt(int index) {
+      int[] axes = new int[axes_.length - 1];
+      long[] positions = new long[axes_.length - 1];
+      System.arraycopy(axes_, 0, axes, 0, index);
+      System.arraycopy(positions_, 0, positions, 0, index);
+      System.arraycopy(axes_, index + 1, axes, index, axes.length - index);
+      System.arraycopy(positions_, index + 1, positions, index, axes.length - index);
+      Interned[] interned = null;
+      if (interned_ != null) {
+         interned = new Interned[axes.length];
+         System.arraycopy(interned_, 0, interned, 0, index);
+         System.arraycopy(interned_, index + 1, interned, index, axes.length - index);
+      }
+      return new AxesKey(axes, positions, interned);
+   }
+
+   private int indexOf(String axis) {
+      Integer id = axisIds_.get(axis);
+      return id == null ? -1 : Arrays.binarySearch(axes_, id);
+   }
+
+   private static int axisId(String axis) {
+      Integer id = axisIds_.get(axis);
+      if (id != null) {
+         return id;
+      }
+      synchronized (AxesKey.class) {
+         id = axisIds_.get(axis);
+         if (id == null) {
+            String[] names = axisNames_;
+            if (numAxisNames_ == names.length) {
+               names = Arrays.copyOf(names, 2 * names.length);
+            }
+            id = numAxisNames_++;
+            names[id] = axis;
+            // Publish the name before the id, so anyone with the id can look it up
+            axisNames_ = names;
+            axisIds_.put(axis, id);
+         }
+         return id;
+      }
+   }
+
+   private static Interned intern(Object position) {
+      if (position == null) {
+         throw new IllegalArgumentException("Axis positions can't be null");
+      }
+      InternedRef ref = valueIds_.get(position);
+      Interned interned = ref == null ? null : ref.get();
+      if (interned != null) {
+         return interned;
+      }
+      synchronized (AxesKey.class) {
+         releaseUnusedValues();
+         ref = valueIds_.get(position);
+         interned = ref == null ? null : ref.get();
+         if (interned == null) {
+            int id = numFreeValueIds_ > 0 ? freeValueIds_[--numFreeValueIds_] : nextValueId_++;
+            interned = new Interned(position, id);
+            valueIds_.put(position, new InternedRef(interned));
+         }
+         return interned;
+      }
+   }
+
+   /**
+    * Forget positions that no key has any more. No key can have their ids
+    * either, so the ids can be reused. Called with the monitor on
+    * AxesKey.class held
+    */
+   private static void releaseUnusedValues() {
+      InternedRef ref;
+      while ((ref = (InternedRef) unusedValues_.poll()) != null) {
+         valueIds_.remove(ref.value, ref);
+         if (numFreeValueIds_ == freeValueIds_.length) {
+            freeValueIds_ = Arrays.copyOf(freeValueIds_, 2 * freeValueIds_.length);
+         }
+         freeValueIds_[numFreeValueIds_++] = ref.id;
+      }
+   }
+
+   private Object decode(int index) {
+      long position = positions_[index];
+      if (position >= Integer.MIN_VALUE) {
+         return (int) position;
+      }
+      return interned_[index].value;
+   }
+
+   @Override
+   public int hashCode() {
+      return hash_;
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (this == o) {
+         return true;
+      }
+      if (!(o instanceof AxesKey)) {
+         return false;
+      }
+      AxesKey k = (AxesKey) o;
+      return hash_ == k.hash_ && Arrays.equals(axes_, k.axes_) && Arrays.equals(positions_, k.positions_);
+   }
+
+   @Override
+   public String toString() {
+      return toMap().toString();
+   }
+}
@@ -20,6 +20,7 @@ import org.micromanager.ndviewer.internal.gui.DataViewCoords;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.geom.Point2D;
+import java.util.HashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -80,9 +81,11 @@ public class BaseOverlayer {
 
             if (overlayerPlugin != null) {
                try {
+                  // Plugins get a copy of the axes, since the view's own map is shared
                   overlayerPlugin.drawOverlay(defaultOverlay, viewCoords.getDisplayImageSize(),
                           viewCoords.getDownsampleFactor(), display_.getCanvasJPanel().getGraphics(),
-                          viewCoords.getAxesPositions(), viewCoords.getMagnification(), viewCoords.getViewOffset());
+                          new HashMap<String, Object>(viewCoords.getAxesPositions()),
+                          viewCoords.getMagnification(), viewCoords.getViewOffset());
                } catch (InterruptedException ex) {
                   return; // Interrupted to start a new one
                }
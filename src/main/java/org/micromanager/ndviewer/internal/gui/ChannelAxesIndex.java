@@ -0,0 +1,131 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.micromanager.ndviewer.main.NDViewer;
+
+/**
+ * Incrementally maintained index of which axes are present for each channel,
+ * and the range of values seen along each integer axis. This is fed as image
+ * keys become known to the viewer, so that rendering does not need to scan
+ * every image key in the data source to figure out which axes apply to a
+ * channel.
+ */
+public class ChannelAxesIndex {
+
+   // Key used for images that don't have a channel axis
+   private static final String NO_CHANNEL_KEY = NDViewer.NO_CHANNEL;
+
+   private final ConcurrentHashMap<String, Set<String>> axesByChannel_ = new ConcurrentHashMap<>();
+   // axis name -> {min, max}
+   private final ConcurrentHashMap<String, int[]> integerAxisRanges_ = new ConcurrentHashMap<>();
+   private volatile boolean empty_ = true;
+
+   /**
+    * Record the axes of an image that is available in the data source.
+    *
+    * @param axesPositions Hashmap of axis labels to positions
+    */
+   public void addImageKey(Map<String, Object> axesPositions) {
+      Object channel = axesPositions.get(NDViewer.CHANNEL_AXIS);
+      String channelKey = channel instanceof String ? (String) channel : NO_CHANNEL_KEY;
+      Set<String> axes = axesByChannel_.computeIfAbsent(channelKey,
+              k -> ConcurrentHashMap.newKeySet());
+      for (String axis : axesPositions.keySet()) {
+         axes.add(axis);
+         Object position = axesPositions.get(axis);
+         if (position instanceof Integer) {
+            int value = (Integer) position;
+            integerAxisRanges_.compute(axis, (k, range) -> {
+               if (range == null) {
+                  return new int[]{value, value};
+               }
+               if (value >= range[0] && value <= range[1]) {
+                  return range;
+               }
+               return new int[]{Math.min(range[0], value), Math.max(range[1], value)};
+            });
+         }
+      }
+      empty_ = false;
+   }
+
+   /**
+    * @return true if no image keys have been recorded yet
+    */
+   public boolean isEmpty() {
+      return empty_;
+   }
+
+   /**
+    * Get the names of all axes that have been seen for images of the given
+    * channel.
+    *
+    * @param channel channel name
+    * @return unmodifiable view of the axis names, empty if channel is unknown
+    */
+   public Set<String> getAxesInChannel(String channel) {
+      Set<String> axes = axesByChannel_.get(channel);
+      if (axes == null) {
+         return Collections.emptySet();
+      }
+      return Collections.unmodifiableSet(axes);
+   }
+
+   /**
+    * @return the names of all channels seen so far
+    */
+   public Set<String> getChannels() {
+      HashSet<String> channels = new HashSet<String>(axesByChannel_.keySet());
+      channels.remove(NO_CHANNEL_KEY);
+      return channels;
+   }
+
+   /**
+    * Smallest position seen along an integer axis.
+    *
+    * @return the minimum, or null if no integer positions seen for this axis
+    */
+   public Integer getAxisMin(String axis) {
+      int[] range = integerAxisRanges_.get(axis);
+      return range == null ? null : range[0];
+   }
+
+   /**
+    * Largest position seen along an integer axis.
+    *
+    * @return the maximum, or null if no integer positions seen for this axis
+    */
+   public Integer getAxisMax(String axis) {
+      int[] range = integerAxisRanges_.get(axis);
+      return range == null ? null : range[1];
+   }
+
+   /**
+    * @return map of integer axis names to their minimum positions
+    */
+   public HashMap<String, Object> getAxisMins() {
+      HashMap<String, Object> mins = new HashMap<String, Object>();
+      for (Map.Entry<String, int[]> e : integerAxisRanges_.entrySet()) {
+         mins.put(e.getKey(), e.getValue()[0]);
+      }
+      return mins;
+   }
+
+   /**
+    * @return map of integer axis names to their maximum positions
+    */
+   public HashMap<String, Object> getAxisMaxs() {
+      HashMap<String, Object> maxs = new HashMap<String, Object>();
+      for (Map.Entry<String, int[]> e : integerAxisRanges_.entrySet()) {
+         maxs.put(e.getKey(), e.getValue()[1]);
+      }
+      return maxs;
+   }
+
+}
@@ -0,0 +1,213 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Additively blends 8 bit channel images into a packed RGB buffer. The output
+ * is split into bands of rows that are composited in parallel, and within a
+ * band every active channel is blended in a single pass over each pixel.
+ */
+class ChannelCompositor {
+
+   // Don't split bands smaller than this many pixels, the overhead isn't worth it
+   private static final int MIN_PIXELS_PER_BAND = 64 * 1024;
+
+   /**
+    * One channel to be blended. For grayscale channels the same 8 bit image
+    * is used for all three components, for RGB channels each component has
+    * its own image and lookup table. Alternatively a layer can be the raw
+    * pixels with a packed RGB lookup table covering every possible pixel
+    * value, in which case no 8 bit image is needed at all.
+    */
+   static class Layer {
+
+      final byte[] redIndices, greenIndices, blueIndices;
+      final int[] reds, greens, blues;
+      final short[] rawShortPixels;
+      final byte[] rawBytePixels;
+      final int[] packedLUT;
+
+      Layer(byte[] redIndices, int[] reds, byte[] greenIndices, int[] greens,
+            byte[] blueIndices, int[] blues) {
+         this.redIndices = redIndices;
+         this.greenIndices = greenIndices;
+         this.blueIndices = blueIndices;
+         this.reds = reds;
+         this.greens = greens;
+         this.blues = blues;
+         rawShortPixels = null;
+         rawBytePixels = null;
+         packedLUT = null;
+      }
+
+      Layer(byte[] indices, int[] reds, int[] greens, int[] blues) {
+         this(indices, reds, indices, greens, indices, blues);
+      }
+
+      /**
+       * @param rawPixels short[] or byte[] pixels
+       * @param packedLUT map from every pixel value to a packed RGB value
+       */
+      Layer(Object rawPixels, int[] packedLUT) {
+         redIndices = null;
+         greenIndices = null;
+         blueIndices = null;
+         reds = null;
+         greens = null;
+         blues = null;
+         rawShortPixels = rawPixels instanceof short[] ? (short[]) rawPixels : null;
+         rawBytePixels = rawPixels instanceof byte[] ? (byte[]) rawPixels : null;
+         this.packedLUT = packedLUT;
+      }
+   }
+
+   // Shared by all viewers, so opening more of them doesn't add threads
+   private static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+
+   /**
+    * Blend all layers into the output buffer, saturating each component.
+    *
+    * @param layers channels to blend, in any order
+    * @param rgbPixels output buffer of width * height packed RGB values
+    * @param width width of the image
+    * @param height height of the image
+    */
+   void composite(List<Layer> layers, int[] rgbPixels, int width, int height) {
+      composite(layers, rgbPixels, width, 0, 0, width, height);
+   }
+
+   /**
+    * Blend all layers into a rectangular region of the output buffer, leaving
+    * the rest of it untouched.
+    *
+    * @param width width of the whole image
+    * @param colStart first column of the region
+    * @param rowStart first row of the region
+    * @param colEnd column after the last one in the region
+    * @param rowEnd row after the last one in the region
+    */
+   void composite(List<Layer> layers, int[] rgbPixels, int width, int colStart, int rowStart,
+                  int colEnd, int rowEnd) {
+      if (colEnd <= colStart || rowEnd <= rowStart) {
+         return;
+      }
+      Layer[] layerArray = layers.toArray(new Layer[0]);
+      int minRows = Math.max(1, MIN_PIXELS_PER_BAND / (colEnd - colStart));
+      POOL.invoke(new BandTask(layerArray, rgbPixels, width, colStart, colEnd,
+              rowStart, rowEnd, minRows));
+   }
+
+   /**
+    * Run an action for each index from 0 to count - 1, in parallel
+    */
+   void forEachIndex(int count, IntConsumer action) {
+      POOL.invoke(new IndexTask(action, 0, count));
+   }
+
+   /**
+    * Blend all layers into a rectangular region of the output buffer on the
+    * calling thread.
+    */
+   static void compositeRows(Layer[] layers, int[] rgbPixels, int width,
+                                     int colStart, int colEnd, int rowStart, int rowEnd) {
+      if (colStart == 0 && colEnd == width) {
+         // Whole rows are contiguous
+         compositeRun(layers, rgbPixels, rowStart * width, rowEnd * width);
+         return;
+      }
+      for (int row = rowStart; row < rowEnd; row++) {
+         compositeRun(layers, rgbPixels, row * width + colStart, row * width + colEnd);
+      }
+   }
+
+   private static void compositeRun(Layer[] layers, int[] rgbPixels, int start, int end) {
+      for (int p = start; p < end; p++) {
+         int redValue = 0;
+         int greenValue = 0;
+         int blueValue = 0;
+         for (Layer layer : layers) {
+            if (layer.packedLUT != null) {
+               int rgb = layer.rawShortPixels != null
+                       ? layer.packedLUT[layer.rawShortPixels[p] & 0xffff]
+                       : layer.packedLUT[layer.rawBytePixels[p] & 0xff];
+               redValue += rgb & 0xff0000;
+               greenValue += rgb & 0xff00;
+               blueValue += rgb & 0xff;
+            } else {
+               redValue += layer.reds[layer.redIndices[p] & 0xff];
+               greenValue += layer.greens[layer.greenIndices[p] & 0xff];
+               blueValue += layer.blues[layer.blueIndices[p] & 0xff];
+            }
+         }
+         if (redValue > 16711680) {
+            redValue = 16711680;
+         }
+         if (greenValue > 65280) {
+            greenValue = 65280;
+         }
+         if (blueValue > 255) {
+            blueValue = 255;
+         }
+         rgbPixels[p] = redValue | greenValue | blueValue;
+      }
+   }
+
+   @SuppressWarnings("serial")
+   private static class IndexTask extends RecursiveAction {
+
+      private final IntConsumer action_;
+      private final int start_, end_;
+
+      IndexTask(IntConsumer action, int start, int end) {
+         action_ = action;
+         start_ = start;
+         end_ = end;
+      }
+
+      @Override
+      protected void compute() {
+         if (end_ - start_ <= 1) {
+            if (end_ > start_) {
+               action_.accept(start_);
+            }
+            return;
+         }
+         int mid = (start_ + end_) >>> 1;
+         invokeAll(new IndexTask(action_, start_, mid), new IndexTask(action_, mid, end_));
+      }
+   }
+
+   @SuppressWarnings("serial")
+   private static class BandTask extends RecursiveAction {
+
+      private final Layer[] layers_;
+      private final int[] rgbPixels_;
+      private final int width_, colStart_, colEnd_, rowStart_, rowEnd_, minRows_;
+
+      BandTask(Layer[] layers, int[] rgbPixels, int width, int colStart, int colEnd,
+               int rowStart, int rowEnd, int minRows) {
+         layers_ = layers;
+         rgbPixels_ = rgbPixels;
+         width_ = width;
+         colStart_ = colStart;
+         colEnd_ = colEnd;
+         rowStart_ = rowStart;
+         rowEnd_ = rowEnd;
+         minRows_ = minRows;
+      }
+
+      @Override
+      protected void compute() {
+         if (rowEnd_ - rowStart_ <= minRows_) {
+            compositeRows(layers_, rgbPixels_, width_, colStart_, colEnd_, rowStart_, rowEnd_);
+            return;
+         }
+         int mid = (rowStart_ + rowEnd_) >>> 1;
+         invokeAll(new BandTask(layers_, rgbPixels_, width_, colStart_, colEnd_, rowStart_, mid, minRows_),
+                 new BandTask(layers_, rgbPixels_, width_, colStart_, colEnd_, mid, rowEnd_, minRows_));
+      }
+   }
+}
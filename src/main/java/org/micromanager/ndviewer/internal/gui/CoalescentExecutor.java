@@ -1,25 +1,31 @@
 package org.micromanager.ndviewer.internal.gui;
 
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
 public class CoalescentExecutor {
 
-   // Guarded by monitor on this
-   private final Map<Class<?>, CoalescentRunnable> coalescedRunnables_ = new HashMap<Class<?>, CoalescentRunnable>();
-   private final Map<Class<?>, Long> skipCounts_ = new HashMap<Class<?>, Long>();
-
    private ExecutorService executor_;
+   // Submitted rather than executed, so exceptions don't kill the thread
+   private final CoalescentSlots slots_ = new CoalescentSlots(r -> executor_.submit(r));
 
    public CoalescentExecutor(final String name) {
+      this(name, Thread.NORM_PRIORITY);
+   }
+
+   /**
+    * @param priority priority of the thread, e.g. lower than normal for work
+    *                 that shouldn't compete with rendering
+    */
+   public CoalescentExecutor(final String name, final int priority) {
       executor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
          @Override
          public Thread newThread(Runnable r) {
-            return new Thread(r, name);
+            Thread t = new Thread(r, name);
+            t.setPriority(priority);
+            return t;
          }
       });
    }
@@ -49,32 +55,7 @@ public class CoalescentExecutor {
     * @param runnable the coalescent runnable to invoke on the EDT
     */
    public void submitWithCoalescence(CoalescentRunnable runnable) {
-      final Class<?> coalescenceClass = runnable.getCoalescenceClass();
-      synchronized (this) {
-         CoalescentRunnable coalesced
-                 = coalescedRunnables_.get(coalescenceClass);
-         if (coalesced != null) {
-            coalesced = coalesced.coalesceWith(runnable);
-         } else {
-            coalesced = runnable;
-         }
-         coalescedRunnables_.put(coalescenceClass, coalesced);
-      }
-
-      executor_.submit(new Runnable() {
-         @Override
-         public void run() {
-            final CoalescentRunnable coalesced;
-            synchronized (CoalescentExecutor.this) {
-               coalesced = coalescedRunnables_.remove(coalescenceClass);
-            }
-            if (coalesced == null) {
-               return; // Already handled by previous invocations
-            }
-
-            coalesced.run();
-         }
-      });
+      slots_.submit(runnable, false);
    }
 
    /**
@@ -89,42 +70,7 @@ public class CoalescentExecutor {
     */
    public void invokeAsLateAsPossibleWithCoalescence(
            CoalescentRunnable runnable) {
-      final Class<?> coalescenceClass = runnable.getCoalescenceClass();
-      synchronized (this) {
-         CoalescentRunnable coalesced
-                 = coalescedRunnables_.get(coalescenceClass);
-         if (coalesced != null) {
-            coalesced = coalesced.coalesceWith(runnable);
-            // Increment skip count
-            Long oldSkipCount = skipCounts_.get(coalescenceClass);
-            skipCounts_.put(coalescenceClass,
-                    (oldSkipCount == null ? 0 : oldSkipCount) + 1);
-         } else {
-            coalesced = runnable;
-         }
-         coalescedRunnables_.put(coalescenceClass, coalesced);
-      }
-
-      executor_.submit(new Runnable() {
-         @Override
-         public void run() {
-            final CoalescentRunnable coalesced;
-            synchronized (CoalescentExecutor.this) {
-               Long skipCount = skipCounts_.get(coalescenceClass);
-               if (skipCount != null && skipCount > 0) {
-                  skipCounts_.put(coalescenceClass, skipCount - 1);
-                  return;
-               }
-               coalesced = coalescedRunnables_.remove(coalescenceClass);
-            }
-            if (coalesced == null) {
-               return; // Be defensive
-            }
-
-            coalesced.run();
-         }
-      });
+      slots_.submit(runnable, true);
    }
 
- 
 }
@@ -0,0 +1,90 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock free coalescing of {@link CoalescentRunnable}s onto an executor. Each
+ * coalescence class has a slot holding the runnable coalesced so far, and at
+ * most one task per class is queued on the executor at any time, however
+ * often runnables are submitted.
+ */
+class CoalescentSlots {
+
+   private final Executor executor_;
+   private final ConcurrentHashMap<Class<?>, Slot> slots_ = new ConcurrentHashMap<Class<?>, Slot>();
+
+   /**
+    * @param executor where the coalesced runnables are run
+    */
+   CoalescentSlots(Executor executor) {
+      executor_ = executor;
+   }
+
+   /**
+    * Coalesce a runnable with those of its class that haven't run yet.
+    *
+    * @param runnable the runnable
+    * @param asLateAsPossible if true, the coalesced runnable won't run until
+    *                         everything submitted to the executor before this
+    *                         call has run. Otherwise it runs at the position
+    *                         of the earliest outstanding submission of its class
+    */
+   void submit(CoalescentRunnable runnable, boolean asLateAsPossible) {
+      Class<?> coalescenceClass = runnable.getCoalescenceClass();
+      Slot slot = slots_.get(coalescenceClass);
+      if (slot == null) {
+         slot = slots_.computeIfAbsent(coalescenceClass, k -> new Slot());
+      }
+      CoalescentRunnable current;
+      CoalescentRunnable coalesced;
+      do {
+         current = slot.pending_.get();
+         // coalesceWith has no side effects, so it is safe to retry
+         coalesced = current == null ? runnable : current.coalesceWith(runnable);
+      } while (!slot.pending_.compareAndSet(current, coalesced));
+      if (asLateAsPossible) {
+         slot.deferrals_.incrementAndGet();
+      }
+      if (slot.queued_.compareAndSet(false, true)) {
+         slot.queuedAt_ = slot.deferrals_.get();
+         executor_.execute(slot);
+      }
+   }
+
+   private class Slot implements Runnable {
+
+      private final AtomicReference<CoalescentRunnable> pending_ = new AtomicReference<CoalescentRunnable>();
+      // Whether this slot is queued on the executor
+      private final AtomicBoolean queued_ = new AtomicBoolean();
+      // Number of as late as possible submissions so far
+      private final AtomicLong deferrals_ = new AtomicLong();
+      // Value of deferrals_ when this slot was last queued
+      private volatile long queuedAt_;
+
+      @Override
+      public void run() {
+         long deferrals = deferrals_.get();
+         if (deferrals != queuedAt_) {
+            // Deferred while waiting, so go to the back of the queue
+            queuedAt_ = deferrals;
+            executor_.execute(this);
+            return;
+         }
+         queued_.set(false);
+         if (deferrals_.get() != deferrals && queued_.compareAndSet(false, true)) {
+            queuedAt_ = deferrals_.get();
+            executor_.execute(this);
+            return;
+         }
+         CoalescentRunnable coalesced = pending_.getAndSet(null);
+         if (coalesced == null) {
+            return; // Already handled
+         }
+         coalesced.run();
+      }
+   }
+}
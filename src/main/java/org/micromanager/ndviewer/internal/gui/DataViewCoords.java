@@ -6,23 +6,39 @@
 package org.micromanager.ndviewer.internal.gui;
 
 import java.awt.geom.Point2D;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Map;
 
 import org.micromanager.ndviewer.api.NDViewerDataSource;
 import org.micromanager.ndviewer.main.NDViewer;
 
 /**
+ * Which part of the dataset is viewed, and how. Copies are cheap: the axes
+ * positions are an immutable {@link AxesKey} shared with the original until
+ * either changes them, and the accessors for individual coordinates don't
+ * allocate.
  *
  * @author henrypinkard
  */
 public class DataViewCoords {
 
+   // Axes positions along with a map of them made on demand for the API
+   private static final class Axes {
+
+      final AxesKey key;
+      volatile Map<String, Object> map;
+
+      Axes(AxesKey key) {
+         this.key = key;
+      }
+   }
+
    private volatile int overlayMode_;
 
    private double displayImageWidth_, displayImageHeight_; //resolution of the image to be displayed 
    private double sourceDataFullResWidth_, sourceDataFullResHeight_; //resolution in pixels of the display image at full res
    private double xView_, yView_; //top left pixel in full res coordinates
-   private HashMap<String, Object> axes_ = new HashMap<String, Object>();
+   private volatile Axes axes_ = new Axes(AxesKey.EMPTY);
    private int resolutionIndex_;
    private NDViewerDataSource data_;
    private boolean rgb_;
@@ -73,7 +89,15 @@ public class DataViewCoords {
     * @return
     */
    public Point2D.Double getSourceImageSizeAtResLevel() {
-      return new Point2D.Double(sourceDataFullResWidth_ / getDownsampleFactor(), sourceDataFullResHeight_ / getDownsampleFactor());
+      return new Point2D.Double(getSourceImageWidthAtResLevel(), getSourceImageHeightAtResLevel());
+   }
+
+   public double getSourceImageWidthAtResLevel() {
+      return sourceDataFullResWidth_ / getDownsampleFactor();
+   }
+
+   public double getSourceImageHeightAtResLevel() {
+      return sourceDataFullResHeight_ / getDownsampleFactor();
    }
 
    public boolean isRGB() {
@@ -90,10 +114,26 @@ public class DataViewCoords {
       return new Point2D.Double(sourceDataFullResWidth_, sourceDataFullResHeight_);
    }
 
+   public double getFullResSourceDataWidth() {
+      return sourceDataFullResWidth_;
+   }
+
+   public double getFullResSourceDataHeight() {
+      return sourceDataFullResHeight_;
+   }
+
    public Point2D.Double getDisplayImageSize() {
       return new Point2D.Double(displayImageWidth_, displayImageHeight_);
    }
 
+   public double getDisplayImageWidth() {
+      return displayImageWidth_;
+   }
+
+   public double getDisplayImageHeight() {
+      return displayImageHeight_;
+   }
+
    /**
     * Computes the scaling between display pixels and whatever pixels they were
     * derived from
@@ -138,6 +178,14 @@ public class DataViewCoords {
       return new Point2D.Double(xView_, yView_);
    }
 
+   public double getViewOffsetX() {
+      return xView_;
+   }
+
+   public double getViewOffsetY() {
+      return yView_;
+   }
+
    public void setViewOffset(double xOffset, double yOffset) {
       xView_ = xOffset;
       yView_ = yOffset;
@@ -150,22 +198,31 @@ public class DataViewCoords {
    }
 
    public void setAxisPosition(String axis, Object position) {
-      axes_.put(axis, position);
+      AxesKey axes = axes_.key.with(axis, position);
+      if (axes != axes_.key) {
+         axes_ = new Axes(axes);
+      }
    }
 
    public Object getAxisPosition(String axis) {
-      if (!axes_.containsKey(axis)) {
-         return 0;
-      }
-      return axes_.get(axis);
+      Object position = axes_.key.get(axis);
+      return position == null ? 0 : position;
+   }
+
+   // For copy only
+   private DataViewCoords(DataViewCoords other) {
+      data_ = other.data_;
+      sourceDataFullResWidth_ = other.sourceDataFullResWidth_;
+      sourceDataFullResHeight_ = other.sourceDataFullResHeight_;
+      xMin_ = other.xMin_;
+      yMin_ = other.yMin_;
+      xMax_ = other.xMax_;
+      yMax_ = other.yMax_;
+      axes_ = other.axes_;
    }
 
    public DataViewCoords copy() {
-      DataViewCoords view = new DataViewCoords(data_, xView_, yView_,
-              sourceDataFullResWidth_, sourceDataFullResHeight_, new int[]{xMin_, yMin_, xMax_, yMax_}, rgb_);
-      for (String axisName : axes_.keySet()) {
-         view.axes_.put(axisName, axes_.get(axisName));
-      }
+      DataViewCoords view = new DataViewCoords(this);
       view.displayImageHeight_ = displayImageHeight_;
       view.displayImageWidth_ = displayImageWidth_;
       view.xView_ = xView_;
@@ -177,12 +234,40 @@ public class DataViewCoords {
       return view;
    }
 
+   /**
+    * @return copy of this view that reads its data from a different
+    * resolution level
+    */
+   public DataViewCoords copyAtResolutionIndex(int resolutionIndex) {
+      DataViewCoords view = copy();
+      view.resolutionIndex_ = resolutionIndex;
+      return view;
+   }
+
 //   public String getActiveChannel() {
 //      return axes_.get("channel") != null ? "" + axes_.get("channel") : "" ;
 //   }
 
-   public HashMap<String, Object> getAxesPositions() {
-      return axes_;
+   /**
+    * @return unmodifiable map of axes positions, shared between copies of this
+    * view. Use {@link #setAxisPosition} to change them
+    */
+   public Map<String, Object> getAxesPositions() {
+      Axes axes = axes_;
+      Map<String, Object> map = axes.map;
+      if (map == null) {
+         map = Collections.unmodifiableMap(axes.key.toMap());
+         axes.map = map;
+      }
+      return map;
+   }
+
+   /**
+    * @return the axes positions, which can be compared or used as a key
+    * without copying
+    */
+   public AxesKey getAxesKey() {
+      return axes_.key;
    }
 
 //   public void setActiveChannel(String channelName) {
@@ -0,0 +1,448 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import mmcorej.TaggedImage;
+import org.micromanager.ndviewer.api.NDViewerDataSource;
+import org.micromanager.ndviewer.internal.gui.contrast.ChannelHistogram;
+import org.micromanager.ndviewer.main.NDViewer;
+
+/**
+ * Histograms of each channel merged over a chosen subset of the images in
+ * the data source (e.g. all z slices of the current time point, or every
+ * tenth frame), so that autoscaling can use contrast limits that don't
+ * change while scrolling through the subset. Images are read and counted on
+ * a low priority thread of its own, and images that arrive later are added
+ * to the totals without counting the others again. Histograms already in the
+ * {@link HistogramCache}, e.g. loaded from a sidecar file, are used without
+ * reading the image.
+ *
+ * Only the contrast limits for the fraction of outliers last asked for are
+ * made available, at most a few times a second while images are being
+ * counted, and only when they change.
+ *
+ * Images are counted once, so an image that is overwritten after being
+ * counted (e.g. a tile being filled in) isn't recounted until the scope is
+ * set again. Requires a data source with bounds, and only counts 8 and 16 bit
+ * grayscale images.
+ */
+public class DatasetContrastStatistics {
+
+   // Images are read at the finest resolution level that has no more pixels than this
+   private static final long MAX_PIXELS_PER_IMAGE = 1 << 20;
+   // Make new contrast limits available at most this often (in ms) while catching up
+   private static final long PUBLISH_INTERVAL_MS = 250;
+
+   /**
+    * Merged histogram of one channel
+    */
+   private static final class ChannelTotals {
+
+      final long[] counts;
+      long total;
+
+      ChannelTotals(int numBins) {
+         counts = new long[numBins];
+      }
+
+      // Same definitions as ChannelHistogram, with counts that can exceed those of a single image
+      int minAfterRejecting(double fraction) {
+         long maxOutliers = (long) (0.5 + total * fraction);
+         long sum = 0;
+         for (int i = 0; i < counts.length; i++) {
+            sum += counts[i];
+            if (sum > maxOutliers) {
+               return i;
+            }
+         }
+         return 0;
+      }
+
+      int maxAfterRejecting(double fraction) {
+         long maxOutliers = (long) (0.5 + total * fraction);
+         long sum = 0;
+         for (int i = counts.length - 1; i >= 0; i--) {
+            sum += counts[i];
+            if (sum > maxOutliers) {
+               return i;
+            }
+         }
+         return 0;
+      }
+   }
+
+   /**
+    * Contrast min and max of each channel, for one fraction of outliers
+    */
+   private static final class Limits {
+
+      final double fraction;
+      final HashMap<String, int[]> ranges;
+
+      Limits(double fraction, HashMap<String, int[]> ranges) {
+         this.fraction = fraction;
+         this.ranges = ranges;
+      }
+
+      boolean sameAs(Limits other) {
+         if (fraction != other.fraction || !ranges.keySet().equals(other.ranges.keySet())) {
+            return false;
+         }
+         for (Map.Entry<String, int[]> e : ranges.entrySet()) {
+            if (!Arrays.equals(e.getValue(), other.ranges.get(e.getKey()))) {
+               return false;
+            }
+         }
+         return true;
+      }
+   }
+
+   private final NDViewerDataSource data_;
+   private final HistogramCache histograms_;
+   private final Runnable onUpdate_;
+   private final CoalescentExecutor executor_ =
+           new CoalescentExecutor("Contrast statistics executor", Thread.MIN_PRIORITY);
+
+   // Guarded by monitor on this
+   private Predicate<Map<String, Object>> scope_ = null;
+   private final LinkedHashSet<AxesKey> pending_ = new LinkedHashSet<AxesKey>();
+   private final HashSet<AxesKey> counted_ = new HashSet<AxesKey>();
+   private final HashMap<String, ChannelTotals> totals_ = new HashMap<String, ChannelTotals>();
+   // Changes whenever the scope does, so counts made for an old scope are discarded
+   private int generation_ = 0;
+
+   // Fraction of outliers that readers last asked for limits for
+   private volatile double fraction_ = 0;
+   // Limits computed from totals_ for readers
+   private volatile Limits published_ = new Limits(0, new HashMap<String, int[]>());
+   private volatile boolean closed_ = false;
+   // Only used on the statistics thread
+   private ChannelHistogram byteScratch_ = null;
+   private ChannelHistogram shortScratch_ = null;
+
+   /**
+    * @param data source to read images from
+    * @param histograms cache to look up histograms in before reading images,
+    *                   and to add the histograms of images read to
+    * @param onUpdate called on the statistics thread whenever new statistics
+    *                 are available, e.g. to redraw with the new contrast
+    */
+   public DatasetContrastStatistics(NDViewerDataSource data, HistogramCache histograms,
+                                    Runnable onUpdate) {
+      data_ = data;
+      histograms_ = histograms;
+      onUpdate_ = onUpdate;
+   }
+
+   /**
+    * @return scope containing every image
+    */
+   public static Predicate<Map<String, Object>> allImages() {
+      return axes -> true;
+   }
+
+   /**
+    * @param position axes positions, e.g. those of the current view
+    * @param freeAxes axes along which images may differ from position, e.g.
+    *                 "z" for all z slices at the current time point. Images
+    *                 may always differ in channel
+    * @return scope containing the images that are at position apart from
+    * along the free axes
+    */
+   public static Predicate<Map<String, Object>> varyingAlong(Map<String, Object> position,
+                                                            String... freeAxes) {
+      HashMap<String, Object> fixed = new HashMap<String, Object>(position);
+      fixed.remove(NDViewer.CHANNEL_AXIS);
+      for (String axis : freeAxes) {
+         fixed.remove(axis);
+      }
+      return axes -> {
+         for (Map.Entry<String, Object> e : fixed.entrySet()) {
+            Object value = axes.get(e.getKey());
+            if (value != null && !value.equals(e.getValue())) {
+               return false;
+            }
+         }
+         return true;
+      };
+   }
+
+   /**
+    * @return scope containing images whose integer position along the axis
+    * is a multiple of n, and images that don't have the axis
+    */
+   public static Predicate<Map<String, Object>> everyNth(String axis, int n) {
+      if (n < 1) {
+         throw new IllegalArgumentException("n must be at least 1");
+      }
+      return axes -> {
+         Object value = axes.get(axis);
+         return !(value instanceof Integer) || ((Integer) value) % n == 0;
+      };
+   }
+
+   /**
+    * Start over with the images of a new scope. Scopes can be combined with
+    * {@link Predicate#and}.
+    *
+    * @param scope which images to include, or null to stop gathering statistics
+    */
+   public void setScope(Predicate<Map<String, Object>> scope) {
+      synchronized (this) {
+         scope_ = scope;
+         generation_++;
+         pending_.clear();
+         counted_.clear();
+         totals_.clear();
+         published_ = new Limits(fraction_, new HashMap<String, int[]>());
+      }
+      if (scope != null) {
+         imagesArrived(data_.getImageKeys());
+      }
+      onUpdate_.run();
+   }
+
+   /**
+    * Queue any of the images that are in scope and haven't been counted yet.
+    *
+    * @param axesList axes of new images. Images already counted are skipped,
+    *                 so all image keys of the data source can be passed
+    */
+   public void imagesArrived(Iterable<? extends Map<String, Object>> axesList) {
+      boolean added = false;
+      synchronized (this) {
+         if (scope_ == null || closed_) {
+            return;
+         }
+         for (Map<String, Object> axes : axesList) {
+            if (scope_.test(axes)) {
+               AxesKey key = AxesKey.of(axes);
+               if (!counted_.contains(key)) {
+                  added |= pending_.add(key);
+               }
+            }
+         }
+      }
+      if (added) {
+         executor_.submitWithCoalescence(new CountRunnable());
+      }
+   }
+
+   /**
+    * @param channel channel name, or {@link NDViewer#NO_CHANNEL}
+    * @param fractionToReject fraction of the lowest and of the highest pixels
+    *                         to ignore
+    * @return contrast min and max over the images counted so far, or null
+    * if none of them are in this channel. If the fraction differs from the
+    * one asked for before, these are the limits for the old fraction until
+    * the ones for the new fraction have been computed
+    */
+   public int[] getContrastRange(String channel, double fractionToReject) {
+      Limits limits = published_;
+      if (limits.fraction != fractionToReject && fraction_ != fractionToReject && !closed_) {
+         fraction_ = fractionToReject;
+         executor_.submitWithCoalescence(new PublishRunnable());
+      }
+      int[] range = limits.ranges.get(channel);
+      return range == null ? null : range.clone();
+   }
+
+   /**
+    * @return number of images counted so far
+    */
+   public synchronized int getCountedImageCount() {
+      return counted_.size();
+   }
+
+   public void shutdown() {
+      closed_ = true;
+      executor_.shutdownNow();
+   }
+
+   private class CountRunnable implements CoalescentRunnable {
+
+      @Override
+      public Class<?> getCoalescenceClass() {
+         return getClass();
+      }
+
+      @Override
+      public CoalescentRunnable coalesceWith(CoalescentRunnable later) {
+         return later;
+      }
+
+      @Override
+      public void run() {
+         long lastPublish = System.currentTimeMillis();
+         while (!closed_ && !Thread.currentThread().isInterrupted()) {
+            AxesKey key;
+            int generation;
+            synchronized (DatasetContrastStatistics.this) {
+               Iterator<AxesKey> it = pending_.iterator();
+               if (!it.hasNext()) {
+                  break;
+               }
+               key = it.next();
+               it.remove();
+               generation = generation_;
+            }
+            HistogramCache.Counts histogram = histogramOf(key);
+            synchronized (DatasetContrastStatistics.this) {
+               if (generation != generation_) {
+                  continue;
+               }
+               counted_.add(key);
+               if (histogram != null) {
+                  Object channel = key.get(NDViewer.CHANNEL_AXIS);
+                  add(channel == null ? NDViewer.NO_CHANNEL : channel.toString(), histogram);
+               }
+            }
+            if (System.currentTimeMillis() - lastPublish >= PUBLISH_INTERVAL_MS) {
+               lastPublish = System.currentTimeMillis();
+               publish();
+            }
+         }
+         publish();
+      }
+   }
+
+   private class PublishRunnable implements CoalescentRunnable {
+
+      @Override
+      public Class<?> getCoalescenceClass() {
+         return getClass();
+      }
+
+      @Override
+      public CoalescentRunnable coalesceWith(CoalescentRunnable later) {
+         return later;
+      }
+
+      @Override
+      public void run() {
+         publish();
+      }
+   }
+
+   /**
+    * Look up the histogram of a whole image, or read and count it
+    *
+    * @return the histogram, or null if the image is missing or not grayscale
+    */
+   private HistogramCache.Counts histogramOf(AxesKey key) {
+      int[] region = wholeImageRegion();
+      if (region == null) {
+         return null;
+      }
+      DisplayImageCache.Key cacheKey = new DisplayImageCache.Key(key, region[0],
+              region[1], region[2], region[3], region[4]);
+      HistogramCache.Counts cached = histograms_.get(cacheKey);
+      if (cached != null) {
+         return cached;
+      }
+      long stamp = histograms_.getStamp();
+      TaggedImage image = readImage(key, region);
+      ChannelHistogram histogram;
+      if (image == null || pixelCount(image.pix) != region[3] * region[4]) {
+         return null; // Missing, or not grayscale (e.g. RGB, with several values per pixel)
+      } else if (image.pix instanceof short[]) {
+         shortScratch_ = shortScratch_ == null ? new ChannelHistogram(65536) : shortScratch_;
+         histogram = shortScratch_;
+      } else {
+         byteScratch_ = byteScratch_ == null ? new ChannelHistogram(256) : byteScratch_;
+         histogram = byteScratch_;
+      }
+      histogram.clear();
+      histogram.count(image.pix, region[3] * region[4],
+              ChannelHistogram.samplesForAccuracy(ChannelHistogram.DEFAULT_ACCURACY),
+              ChannelHistogram.Sampling.BLOCK);
+      histogram.finish();
+      histograms_.put(cacheKey, stamp, histogram);
+      return HistogramCache.Counts.of(histogram);
+   }
+
+   /**
+    * @return resolution index, x and y offset, width and height of the whole
+    * image at the finest resolution level that isn't too large, or null if
+    * the data source has no bounds
+    */
+   private int[] wholeImageRegion() {
+      int[] bounds = data_.getBounds();
+      if (bounds == null) {
+         return null;
+      }
+      long width = bounds[2] - bounds[0];
+      long height = bounds[3] - bounds[1];
+      int resIndex = 0;
+      while (resIndex < data_.getMaxResolutionIndex()
+              && (width >> resIndex) * (height >> resIndex) > MAX_PIXELS_PER_IMAGE) {
+         resIndex++;
+      }
+      return new int[]{resIndex, bounds[0] >> resIndex, bounds[1] >> resIndex,
+              (int) (width >> resIndex), (int) (height >> resIndex)};
+   }
+
+   private TaggedImage readImage(AxesKey key, int[] region) {
+      try {
+         return data_.getImageForDisplay(key.toMap(), region[0], region[1], region[2],
+                 region[3], region[4]);
+      } catch (Exception e) {
+         e.printStackTrace();
+         return null;
+      }
+   }
+
+   private static int pixelCount(Object pix) {
+      if (pix instanceof short[]) {
+         return ((short[]) pix).length;
+      } else if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      }
+      return 0;
+   }
+
+   // Guarded by monitor on this
+   private void add(String channel, HistogramCache.Counts histogram) {
+      ChannelTotals totals = totals_.get(channel);
+      if (totals == null || totals.counts.length < histogram.getNumBins()) {
+         ChannelTotals larger = new ChannelTotals(histogram.getNumBins());
+         if (totals != null) {
+            System.arraycopy(totals.counts, 0, larger.counts, 0, totals.counts.length);
+            larger.total = totals.total;
+         }
+         totals = larger;
+         totals_.put(channel, totals);
+      }
+      totals.total += histogram.addTo(totals.counts);
+   }
+
+   /**
+    * Compute the contrast limits for the fraction of outliers last asked for,
+    * and let readers know if they changed
+    */
+   private void publish() {
+      double fraction = fraction_;
+      synchronized (this) {
+         HashMap<String, int[]> ranges = new HashMap<String, int[]>();
+         for (Map.Entry<String, ChannelTotals> e : totals_.entrySet()) {
+            ChannelTotals totals = e.getValue();
+            if (totals.total > 0) {
+               ranges.put(e.getKey(), new int[]{totals.minAfterRejecting(fraction),
+                       totals.maxAfterRejecting(fraction)});
+            }
+         }
+         Limits limits = new Limits(fraction, ranges);
+         if (limits.sameAs(published_)) {
+            return;
+         }
+         published_ = limits;
+      }
+      onUpdate_.run();
+   }
+}
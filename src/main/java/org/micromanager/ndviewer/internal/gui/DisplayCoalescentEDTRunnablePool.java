@@ -13,8 +13,6 @@
 
 package org.micromanager.ndviewer.internal.gui;
 
-import java.util.HashMap;
-import java.util.Map;
 import javax.swing.SwingUtilities;
 
 /**
@@ -24,11 +22,8 @@ import javax.swing.SwingUtilities;
  * @author Mark A. Tsuchida
  */
  public class DisplayCoalescentEDTRunnablePool {
-   // Guarded by monitor on this
-   private final Map<Class<?>, CoalescentRunnable> coalescedRunnables_ =
-         new HashMap<Class<?>, CoalescentRunnable>();
-   private final Map<Class<?>, Long> skipCounts_ =
-         new HashMap<Class<?>, Long>();
+   private final CoalescentSlots slots_ =
+         new CoalescentSlots(SwingUtilities::invokeLater);
 
    public static DisplayCoalescentEDTRunnablePool create() {
       return new DisplayCoalescentEDTRunnablePool();
@@ -54,34 +49,7 @@ import javax.swing.SwingUtilities;
     * @param runnable the coalescent runnable to invoke on the EDT
     */
    public void invokeLaterWithCoalescence(CoalescentRunnable runnable) {
-      final Class<?> coalescenceClass = runnable.getCoalescenceClass();
-      synchronized (this) {
-         CoalescentRunnable coalesced =
-               coalescedRunnables_.get(coalescenceClass);
-         if (coalesced != null) {
-            coalesced = coalesced.coalesceWith(runnable);
-         }
-         else {
-            coalesced = runnable;
-         }
-         coalescedRunnables_.put(coalescenceClass, coalesced);
-      }
-      
-
-      SwingUtilities.invokeLater(new Runnable() {
-         @Override
-         public void run() {
-            final CoalescentRunnable coalesced;
-            synchronized (DisplayCoalescentEDTRunnablePool.this) {
-               coalesced = coalescedRunnables_.remove(coalescenceClass);
-            }
-            if (coalesced == null) {
-               return; // Already handled by previous invocations
-            }
-
-            coalesced.run();
-         }
-      });
+      slots_.submit(runnable, false);
    }
 
    /**
@@ -97,42 +65,7 @@ import javax.swing.SwingUtilities;
    public void invokeAsLateAsPossibleWithCoalescence(
          CoalescentRunnable runnable)
    {
-      final Class<?> coalescenceClass = runnable.getCoalescenceClass();
-      synchronized (this) {
-         CoalescentRunnable coalesced =
-               coalescedRunnables_.get(coalescenceClass);
-         if (coalesced != null) {
-            coalesced = coalesced.coalesceWith(runnable);
-            // Increment skip count
-            Long oldSkipCount = skipCounts_.get(coalescenceClass);
-            skipCounts_.put(coalescenceClass,
-                  (oldSkipCount == null ? 0 : oldSkipCount) + 1);
-         }
-         else {
-            coalesced = runnable;
-         }
-         coalescedRunnables_.put(coalescenceClass, coalesced);
-      }
-
-      SwingUtilities.invokeLater(new Runnable() {
-         @Override
-         public void run() {
-            final CoalescentRunnable coalesced;
-            synchronized (DisplayCoalescentEDTRunnablePool.this) {
-               Long skipCount = skipCounts_.get(coalescenceClass);
-               if (skipCount != null && skipCount > 0) {
-                  skipCounts_.put(coalescenceClass, skipCount - 1);
-                  return;
-               }
-               coalesced = coalescedRunnables_.remove(coalescenceClass);
-            }
-            if (coalesced == null) {
-               return; // Be defensive
-            }
-
-            coalesced.run();
-         }
-      });
+      slots_.submit(runnable, true);
    }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,443 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mmcorej.TaggedImage;
+
+/**
+ * Least recently used cache of images fetched from the data source for
+ * display, bounded by a total size in bytes. Their histograms are kept
+ * separately in a {@link HistogramCache}.
+ *
+ * Because images can keep arriving for axes that have already been
+ * displayed (e.g. tiles being filled in during an acquisition),
+ * {@link #invalidate} must be called for the axes of each new image. Fetches
+ * that were started before the invalidation are then not stored when they
+ * complete.
+ *
+ * The caches made by {@link #createShared} count against the
+ * {@link SharedCacheBudget} of the process, so that opening more viewers
+ * doesn't multiply the memory taken by cached images.
+ *
+ * Cached images can also be cropped with {@link #getCovering}, so that an
+ * image at a coarse resolution level can stand in for any region it contains
+ * while a finer level is being read.
+ */
+public class DisplayImageCache {
+
+   // Don't let abandoned (e.g. cancelled) fetches accumulate forever. The oldest are
+   // forgotten first, so their images aren't stored when they complete
+   private static final int MAX_PENDING_FETCHES = 1000;
+
+
+   /**
+    * Identifies an image region requested from the data source
+    */
+   public static final class Key {
+
+      private final AxesKey axes_;
+      private final int resolutionIndex_;
+      private final long xOffset_, yOffset_;
+      private final int width_, height_;
+      private final int hash_;
+
+      public Key(AxesKey axes, int resolutionIndex, long xOffset, long yOffset,
+                 int width, int height) {
+         axes_ = axes;
+         resolutionIndex_ = resolutionIndex;
+         xOffset_ = xOffset;
+         yOffset_ = yOffset;
+         width_ = width;
+         height_ = height;
+         int h = axes_.hashCode();
+         h = 31 * h + resolutionIndex_;
+         h = 31 * h + Long.hashCode(xOffset_);
+         h = 31 * h + Long.hashCode(yOffset_);
+         h = 31 * h + width_;
+         h = 31 * h + height_;
+         hash_ = h;
+      }
+
+      /**
+       * @return new map of the axes to request
+       */
+      public HashMap<String, Object> getAxes() {
+         return axes_.toMap();
+      }
+
+      public AxesKey getAxesKey() {
+         return axes_;
+      }
+
+      public int getResolutionIndex() {
+         return resolutionIndex_;
+      }
+
+      public long getXOffset() {
+         return xOffset_;
+      }
+
+      public long getYOffset() {
+         return yOffset_;
+      }
+
+      public int getWidth() {
+         return width_;
+      }
+
+      public int getHeight() {
+         return height_;
+      }
+
+      @Override
+      public int hashCode() {
+         return hash_;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (this == o) {
+            return true;
+         }
+         if (!(o instanceof Key)) {
+            return false;
+         }
+         Key k = (Key) o;
+         return hash_ == k.hash_ && resolutionIndex_ == k.resolutionIndex_
+                 && xOffset_ == k.xOffset_ && yOffset_ == k.yOffset_
+                 && width_ == k.width_ && height_ == k.height_ && axes_.equals(k.axes_);
+      }
+   }
+
+   private static class Entry {
+
+      final TaggedImage image;
+      final long bytes;
+      // When the image was last used, by SharedCacheBudget.nextUse. Guarded by monitor on the cache
+      long lastUse = SharedCacheBudget.nextUse();
+
+      Entry(TaggedImage image, long bytes) {
+         this.image = image;
+         this.bytes = bytes;
+      }
+   }
+
+   // Guarded by monitor on this
+   private final LinkedHashMap<Key, Entry> entries_ = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+   // Keys of fetches in flight by their tokens, oldest first. A key can be fetched by
+   // several at once, e.g. for display and for prefetching
+   private final LinkedHashMap<Object, Key> pendingFetches_ = new LinkedHashMap<Object, Key>();
+   // Keys of cached images by axes and resolution level (region zeroed in the key)
+   private final HashMap<Key, HashSet<Key>> levels_ = new HashMap<Key, HashSet<Key>>();
+   private long maxBytes_;
+   private long bytes_ = 0;
+
+   private final AtomicLong hits_ = new AtomicLong();
+   private final AtomicLong misses_ = new AtomicLong();
+   private final boolean shared_;
+   // Set once a shared cache is released, after which nothing is stored. Guarded by monitor on this
+   private boolean released_ = false;
+   private final SharedCacheBudget.Member budgetMember_ = new SharedCacheBudget.Member() {
+      @Override
+      public long getOldestUse() {
+         return DisplayImageCache.this.getOldestUse();
+      }
+
+      @Override
+      public boolean evictOldest() {
+         return DisplayImageCache.this.evictOldest();
+      }
+   };
+
+   /**
+    * @param maxBytes budget of this cache alone
+    */
+   public DisplayImageCache(long maxBytes) {
+      this(maxBytes, false);
+   }
+
+   private DisplayImageCache(long maxBytes, boolean shared) {
+      maxBytes_ = maxBytes;
+      shared_ = shared;
+   }
+
+   /**
+    * @return a cache that counts against the budget shared by the process.
+    * Call {@link #release} once it is no longer used
+    */
+   public static DisplayImageCache createShared() {
+      DisplayImageCache cache = new DisplayImageCache(Long.MAX_VALUE, true);
+      SharedCacheBudget.register(cache.budgetMember_);
+      return cache;
+   }
+
+   /**
+    * Empty a cache made by {@link #createShared} and stop counting it against
+    * the shared budget.
+    */
+   public void release() {
+      synchronized (this) {
+         released_ = true;
+         clear();
+      }
+      SharedCacheBudget.unregister(budgetMember_);
+   }
+
+   /**
+    * Set the budget shared by the caches of all viewers, which also covers
+    * their composited tiles and histograms
+    */
+   public static void setSharedMaxBytes(long maxBytes) {
+      SharedCacheBudget.setMaxBytes(maxBytes);
+   }
+
+   /**
+    * @return memory taken by all caches that count against the shared budget
+    */
+   public static long getSharedSizeInBytes() {
+      return SharedCacheBudget.getSizeInBytes();
+   }
+
+   /**
+    * Look up an image, counting a hit or miss.
+    *
+    * @return the cached image, or null if it isn't cached
+    */
+   public synchronized TaggedImage get(Key key) {
+      Entry e = entries_.get(key);
+      if (e == null) {
+         misses_.incrementAndGet();
+         return null;
+      }
+      hits_.incrementAndGet();
+      e.lastUse = SharedCacheBudget.nextUse();
+      return e.image;
+   }
+
+   /**
+    * Check for an image without counting a hit or miss or affecting its
+    * recency.
+    */
+   public synchronized boolean contains(Key key) {
+      return entries_.containsKey(key);
+   }
+
+   /**
+    * Find a cached image at the given axes and resolution level whose region
+    * contains the given one, and copy that region out of it. Only images with
+    * one 8 or 16 bit value per pixel are cropped. Doesn't count a hit or miss.
+    *
+    * @return the image of the region, or null if no cached image contains it
+    */
+   public synchronized TaggedImage getCovering(Key region) {
+      HashSet<Key> keys = levels_.get(levelOf(region));
+      if (keys == null) {
+         return null;
+      }
+      for (Key key : keys) {
+         if (key.xOffset_ > region.xOffset_ || key.yOffset_ > region.yOffset_
+                 || key.xOffset_ + key.width_ < region.xOffset_ + region.width_
+                 || key.yOffset_ + key.height_ < region.yOffset_ + region.height_) {
+            continue;
+         }
+         Entry e = entries_.get(key);
+         Object pix = crop(e.image.pix, key.width_, key.height_,
+                 (int) (region.xOffset_ - key.xOffset_), (int) (region.yOffset_ - key.yOffset_),
+                 region.width_, region.height_);
+         if (pix != null) {
+            e.lastUse = SharedCacheBudget.nextUse();
+            return new TaggedImage(pix, e.image.tags);
+         }
+      }
+      return null;
+   }
+
+   private static Object crop(Object pix, int width, int height, int x, int y,
+                              int cropWidth, int cropHeight) {
+      Object cropped;
+      if (pix instanceof byte[] && ((byte[]) pix).length == width * height) {
+         cropped = new byte[cropWidth * cropHeight];
+      } else if (pix instanceof short[] && ((short[]) pix).length == width * height) {
+         cropped = new short[cropWidth * cropHeight];
+      } else {
+         return null;
+      }
+      for (int row = 0; row < cropHeight; row++) {
+         System.arraycopy(pix, (y + row) * width + x, cropped, row * cropWidth, cropWidth);
+      }
+      return cropped;
+   }
+
+   /**
+    * Call before requesting an image from the data source.
+    *
+    * @return token to be passed to {@link #put}
+    */
+   public synchronized Object beginFetch(Key key) {
+      Iterator<Object> it = pendingFetches_.keySet().iterator();
+      while (pendingFetches_.size() >= MAX_PENDING_FETCHES && it.hasNext()) {
+         it.next();
+         it.remove();
+      }
+      Object token = new Object();
+      pendingFetches_.put(token, key);
+      return token;
+   }
+
+   /**
+    * Store a fetched image, unless its axes were invalidated since the fetch
+    * began.
+    */
+   public void put(Key key, Object fetchToken, TaggedImage image) {
+      synchronized (this) {
+         if (!key.equals(pendingFetches_.remove(fetchToken)) || image == null || released_) {
+            return;
+         }
+         long bytes = sizeOf(image.pix);
+         if (bytes > maxBytes_ || (shared_ && bytes > SharedCacheBudget.getMaxBytes())) {
+            return;
+         }
+         Entry old = entries_.put(key, new Entry(image, bytes));
+         if (old != null) {
+            addBytes(-old.bytes);
+         } else {
+            Key level = levelOf(key);
+            HashSet<Key> keys = levels_.get(level);
+            if (keys == null) {
+               keys = new HashSet<Key>();
+               levels_.put(level, keys);
+            }
+            keys.add(key);
+         }
+         addBytes(bytes);
+         trim();
+      }
+      if (shared_) {
+         SharedCacheBudget.trim();
+      }
+   }
+
+   /**
+    * Remove all images with the given axes, at any resolution or region, and
+    * make sure fetches for them that are in flight aren't stored.
+    */
+   public synchronized void invalidate(Map<String, Object> axes) {
+      invalidate(Collections.singleton(axes));
+   }
+
+   /**
+    * Like {@link #invalidate(Map)} for several sets of axes at once, with a
+    * single pass over the cache.
+    */
+   public synchronized void invalidate(Collection<? extends Map<String, Object>> axesList) {
+      if (axesList.isEmpty()) {
+         return;
+      }
+      HashSet<AxesKey> axesSet = new HashSet<AxesKey>();
+      for (Map<String, Object> axes : axesList) {
+         axesSet.add(AxesKey.of(axes));
+      }
+      Iterator<Map.Entry<Key, Entry>> it = entries_.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<Key, Entry> e = it.next();
+         if (axesSet.contains(e.getKey().axes_)) {
+            addBytes(-e.getValue().bytes);
+            it.remove();
+         }
+      }
+      levels_.keySet().removeIf(k -> axesSet.contains(k.axes_));
+      pendingFetches_.values().removeIf(k -> axesSet.contains(k.axes_));
+   }
+
+   public synchronized void clear() {
+      entries_.clear();
+      levels_.clear();
+      pendingFetches_.clear();
+      addBytes(-bytes_);
+   }
+
+   public synchronized void setMaxBytes(long maxBytes) {
+      maxBytes_ = maxBytes;
+      trim();
+   }
+
+   public synchronized long getSizeInBytes() {
+      return bytes_;
+   }
+
+   public long getHitCount() {
+      return hits_.get();
+   }
+
+   public long getMissCount() {
+      return misses_.get();
+   }
+
+   private void trim() {
+      Iterator<Map.Entry<Key, Entry>> it = entries_.entrySet().iterator();
+      while (bytes_ > maxBytes_ && it.hasNext()) {
+         removeEldest(it);
+      }
+   }
+
+   // Guarded by monitor on this
+   private void removeEldest(Iterator<Map.Entry<Key, Entry>> it) {
+      Map.Entry<Key, Entry> e = it.next();
+      addBytes(-e.getValue().bytes);
+      it.remove();
+      Key level = levelOf(e.getKey());
+      HashSet<Key> keys = levels_.get(level);
+      keys.remove(e.getKey());
+      if (keys.isEmpty()) {
+         levels_.remove(level);
+      }
+   }
+
+   private static Key levelOf(Key key) {
+      return new Key(key.axes_, key.resolutionIndex_, 0, 0, 0, 0);
+   }
+
+   // Guarded by monitor on this
+   private void addBytes(long bytes) {
+      bytes_ += bytes;
+      if (shared_) {
+         SharedCacheBudget.addBytes(bytes);
+      }
+   }
+
+   /**
+    * @return when the least recently used image was last used, or
+    * Long.MAX_VALUE if the cache is empty
+    */
+   private synchronized long getOldestUse() {
+      Iterator<Entry> it = entries_.values().iterator();
+      return it.hasNext() ? it.next().lastUse : Long.MAX_VALUE;
+   }
+
+   private synchronized boolean evictOldest() {
+      Iterator<Map.Entry<Key, Entry>> it = entries_.entrySet().iterator();
+      if (!it.hasNext()) {
+         return false;
+      }
+      removeEldest(it);
+      return true;
+   }
+
+   private static long sizeOf(Object pix) {
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return 2L * ((short[]) pix).length;
+      } else if (pix instanceof int[]) {
+         return 4L * ((int[]) pix).length;
+      }
+      return 0;
+   }
+}
@@ -8,8 +8,11 @@ import org.micromanager.ndviewer.main.NDViewer;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.prefs.Preferences;
@@ -27,8 +30,9 @@ public class DisplayModel {
    // Axes may use integer or string positions. Keep track of which
    // uses which ones do this here, and which string values map to which
    // Integer positions (because these are needed for display)
-   private ConcurrentHashMap<String, LinkedList<String>> stringAxes_ = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, StringAxisIndex> stringAxes_ = new ConcurrentHashMap<>();
    private final boolean rgb_;
+   private final ChannelAxesIndex axesIndex_ = new ChannelAxesIndex();
 
 
 
@@ -52,6 +56,13 @@ public class DisplayModel {
       this.displaySettings_ = displaySettings_;
    }
 
+   /**
+    * Index of which axes are present in each channel, kept up to date as images arrive
+    */
+   public ChannelAxesIndex getAxesIndex() {
+      return axesIndex_;
+   }
+
    public int getIntegerPositionFromStringPosition(String axisName, String axisPosition) {
       return stringAxes_.get(axisName).indexOf(axisPosition);
    }
@@ -235,65 +246,154 @@ public class DisplayModel {
     * @return
     */
    public List<String> getDisplayedChannels() {
-      List<String> channels = new LinkedList<>();
-      if (stringAxes_.containsKey(NDViewer.CHANNEL_AXIS)) {
-         channels = stringAxes_.get(NDViewer.CHANNEL_AXIS);
+      StringAxisIndex channels = stringAxes_.get(NDViewer.CHANNEL_AXIS);
+      if (channels == null || channels.size() == 0) {
+         return Collections.singletonList(NDViewer.NO_CHANNEL);
       }
-      if (channels.size() == 0) {
-         channels.add(NDViewer.NO_CHANNEL);
-      }
-      return channels;
+      return channels.getValues();
    }
 
    /**
     * Called upon a new image arriving
     */
    public void parseNewAxesToUpdateDisplayModel(HashMap<String, Object> axesPositions)  {
-      // Update string valued axes, including channels
-      for (String axis : axesPositions.keySet()) {
-         if (!(axesPositions.get(axis) instanceof String)) {
-            continue;
+      StringAxesValues values = new StringAxesValues();
+      values.add(axesPositions);
+      updateStringAxes(values);
+   }
+
+   /**
+    * Called upon many images arriving at once. Adds each image to the axes
+    * index and gathers the string values of its axes in a single pass, so
+    * the keys are only iterated once, and then updates the GUI once for all
+    * new channels
+    *
+    * @return the last of the keys, or null if there were none
+    */
+   public HashMap<String, Object> addImageKeys(
+           Iterable<? extends HashMap<String, Object>> axesPositionsList) {
+      StringAxesValues values = new StringAxesValues();
+      HashMap<String, Object> last = null;
+      for (HashMap<String, Object> axesPositions : axesPositionsList) {
+         axesIndex_.addImageKey(axesPositions);
+         values.add(axesPositions);
+         last = axesPositions;
+      }
+      updateStringAxes(values);
+      return last;
+   }
+
+   /**
+    * @return map of string axis names to their first values
+    */
+   public HashMap<String, Object> getStringAxisFirstValues() {
+      HashMap<String, Object> firsts = new HashMap<String, Object>();
+      for (String axis : stringAxes_.keySet()) {
+         StringAxisIndex axisValues = stringAxes_.get(axis);
+         if (axisValues.size() > 0) {
+            firsts.put(axis, axisValues.get(0));
          }
-         if (!stringAxes_.containsKey(axis)) {
-            stringAxes_.put(axis, new LinkedList<String>());
+      }
+      return firsts;
+   }
+
+   /**
+    * @return map of string axis names to their last values
+    */
+   public HashMap<String, Object> getStringAxisLastValues() {
+      HashMap<String, Object> lasts = new HashMap<String, Object>();
+      for (String axis : stringAxes_.keySet()) {
+         StringAxisIndex axisValues = stringAxes_.get(axis);
+         int size = axisValues.size();
+         if (size > 0) {
+            lasts.put(axis, axisValues.get(size - 1));
          }
-         if (!stringAxes_.get(axis).contains(axesPositions.get(axis))) {
-            stringAxes_.get(axis).add((String) axesPositions.get(axis));
-            if (axis.equals(NDViewer.CHANNEL_AXIS)) {
-               try {
-                  SwingUtilities.invokeAndWait(new Runnable() {
-                     @Override
-                     public void run() {
-                        // make sure GUI and display settings are in sync
-                        display_.readHistogramControlsStateFromGUI();
-                        String channelName = (String) axesPositions.get(NDViewer.CHANNEL_AXIS);
-
-                        if (!channelName.equals(NDViewer.NO_CHANNEL) &&
-                                displaySettings_.containsChannel(NDViewer.NO_CHANNEL)) {
-                           // remove the dummy channel
-                           displaySettings_.removeChannel(NDViewer.NO_CHANNEL);
-                        }
-
-                        int bitDepth = display_.getDataSource().getImageBitDepth(axesPositions);
-                        //Add contrast controls and display settings
-                        if (!displaySettings_.containsChannel(channelName)) {
-                           displaySettings_.addChannel(channelName, bitDepth);
-                        }
-                        if (!displaySettings_.isCompositeMode()) {
-                           // set only this new channel active
-                           for (String cName : stringAxes_.get(NDViewer.CHANNEL_AXIS)) {
-                              displaySettings_.setActive(channelName, cName.equals(channelName));
-                           }
-                        }
-                        display_.getGUIManager().addContrastControlsIfNeeded(channelName);
-                     }
-                  });
-               } catch (Exception e) {
-                  throw new RuntimeException(e);
+      }
+      return lasts;
+   }
+
+   /**
+    * Distinct values of string axes among a set of images, in order of first
+    * appearance, along with the first image of each channel
+    */
+   private static class StringAxesValues {
+
+      final LinkedHashMap<String, LinkedHashSet<String>> values = new LinkedHashMap<>();
+      final HashMap<String, HashMap<String, Object>> channelImages = new HashMap<>();
+
+      void add(HashMap<String, Object> axesPositions) {
+         for (String axis : axesPositions.keySet()) {
+            Object position = axesPositions.get(axis);
+            if (!(position instanceof String)) {
+               continue;
+            }
+            LinkedHashSet<String> axisValues = values.get(axis);
+            if (axisValues == null) {
+               axisValues = new LinkedHashSet<>();
+               values.put(axis, axisValues);
+            }
+            if (axisValues.add((String) position) && axis.equals(NDViewer.CHANNEL_AXIS)) {
+               channelImages.put((String) position, axesPositions);
+            }
+         }
+      }
+   }
+
+   private void updateStringAxes(StringAxesValues newValues) {
+      // Update string valued axes, including channels
+      List<String> newChannels = new ArrayList<>();
+      for (String axis : newValues.values.keySet()) {
+         StringAxisIndex axisValues = stringAxes_.computeIfAbsent(axis, a -> new StringAxisIndex());
+         for (String value : newValues.values.get(axis)) {
+            if (axisValues.add(value)) {
+               if (axis.equals(NDViewer.CHANNEL_AXIS)) {
+                  newChannels.add(value);
+               }
+            }
+         }
+      }
+      if (newChannels.isEmpty()) {
+         return;
+      }
+      try {
+         SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+               // make sure GUI and display settings are in sync
+               display_.readHistogramControlsStateFromGUI();
+               for (String channelName : newChannels) {
+                  addChannel(channelName, newValues.channelImages.get(channelName));
                }
             }
+         });
+      } catch (Exception e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Add display settings and contrast controls for a new channel. Must be
+    * called on the EDT
+    */
+   private void addChannel(String channelName, HashMap<String, Object> axesPositions) {
+      if (!channelName.equals(NDViewer.NO_CHANNEL) &&
+              displaySettings_.containsChannel(NDViewer.NO_CHANNEL)) {
+         // remove the dummy channel
+         displaySettings_.removeChannel(NDViewer.NO_CHANNEL);
+      }
+
+      int bitDepth = display_.getDataSource().getImageBitDepth(axesPositions);
+      //Add contrast controls and display settings
+      if (!displaySettings_.containsChannel(channelName)) {
+         displaySettings_.addChannel(channelName, bitDepth);
+      }
+      if (!displaySettings_.isCompositeMode()) {
+         // set only this new channel active
+         for (String cName : stringAxes_.get(NDViewer.CHANNEL_AXIS).getValues()) {
+            displaySettings_.setActive(channelName, cName.equals(channelName));
          }
       }
+      display_.getGUIManager().addContrastControlsIfNeeded(channelName);
    }
 
    public int[] getBounds() {
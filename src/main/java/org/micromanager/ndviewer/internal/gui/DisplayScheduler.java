@@ -0,0 +1,147 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Paces display frames to a target frame rate. Requests to redraw are held
+ * until the next tick of a clock running at the target rate, and on each
+ * tick only the newest request is rendered. Ticks are skipped when nothing
+ * was requested or the previous frame is still being rendered, and the clock
+ * stops altogether while idle.
+ */
+public class DisplayScheduler {
+
+   public static final double DEFAULT_TARGET_FPS = 60;
+
+   private final CoalescentExecutor renderExecutor_;
+   private final ScheduledExecutorService clock_;
+   private final AtomicReference<Runnable> pending_ = new AtomicReference<Runnable>();
+   private final AtomicBoolean tickScheduled_ = new AtomicBoolean();
+   private final AtomicBoolean rendering_ = new AtomicBoolean();
+   private volatile long frameIntervalNs_;
+   // Time of the next tick of the clock, only accessed on the clock thread
+   private long nextTickNs_ = 0;
+
+   private final AtomicLong renderedFrames_ = new AtomicLong();
+   private final AtomicLong droppedFrames_ = new AtomicLong();
+   private final AtomicLong lateFrames_ = new AtomicLong();
+
+   /**
+    * @param name name of the clock thread
+    * @param renderExecutor where frames are rendered
+    */
+   public DisplayScheduler(final String name, CoalescentExecutor renderExecutor) {
+      renderExecutor_ = renderExecutor;
+      clock_ = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, name);
+         t.setDaemon(true);
+         return t;
+      });
+      setTargetFPS(DEFAULT_TARGET_FPS);
+   }
+
+   public void setTargetFPS(double fps) {
+      if (!(fps > 0)) {
+         throw new IllegalArgumentException("Target frame rate must be positive");
+      }
+      frameIntervalNs_ = (long) (1e9 / fps);
+   }
+
+   public double getTargetFPS() {
+      return 1e9 / frameIntervalNs_;
+   }
+
+   /**
+    * Request a frame to be rendered on the next tick. If an earlier request
+    * is still waiting, it is dropped in favor of this one.
+    *
+    * @param frame renders the newest view
+    */
+   public void requestFrame(Runnable frame) {
+      if (pending_.getAndSet(frame) != null) {
+         droppedFrames_.incrementAndGet();
+      }
+      scheduleTick();
+   }
+
+   private void scheduleTick() {
+      if (!tickScheduled_.compareAndSet(false, true)) {
+         return;
+      }
+      try {
+         clock_.execute(() -> {
+            long now = System.nanoTime();
+            // Stay on the grid of ticks unless the clock was idle for a while
+            if (nextTickNs_ < now - frameIntervalNs_) {
+               nextTickNs_ = now;
+            }
+            long delay = nextTickNs_ - now;
+            nextTickNs_ += frameIntervalNs_;
+            clock_.schedule(this::tick, Math.max(0, delay), TimeUnit.NANOSECONDS);
+         });
+      } catch (RuntimeException e) {
+         tickScheduled_.set(false); // Shut down
+      }
+   }
+
+   private void tick() {
+      tickScheduled_.set(false);
+      if (rendering_.get()) {
+         // Still rendering the last frame, the next tick is scheduled when it finishes
+         return;
+      }
+      Runnable frame = pending_.getAndSet(null);
+      if (frame == null) {
+         return; // Nothing changed
+      }
+      rendering_.set(true);
+      long tickTime = System.nanoTime();
+      renderExecutor_.submitNonCoalescent(() -> {
+         try {
+            frame.run();
+         } finally {
+            renderedFrames_.incrementAndGet();
+            if (System.nanoTime() - tickTime > frameIntervalNs_) {
+               lateFrames_.incrementAndGet();
+            }
+            rendering_.set(false);
+            if (pending_.get() != null) {
+               scheduleTick();
+            }
+         }
+      });
+   }
+
+   /**
+    * @return number of frames rendered so far
+    */
+   public long getRenderedFrameCount() {
+      return renderedFrames_.get();
+   }
+
+   /**
+    * @return number of requested frames that were replaced by newer ones
+    * before they could be rendered
+    */
+   public long getDroppedFrameCount() {
+      return droppedFrames_.get();
+   }
+
+   /**
+    * @return number of frames that took longer than one frame interval to
+    * render, counted from the tick they were started on
+    */
+   public long getLateFrameCount() {
+      return lateFrames_.get();
+   }
+
+   public void shutdownNow() {
+      clock_.shutdownNow();
+      pending_.set(null);
+   }
+}
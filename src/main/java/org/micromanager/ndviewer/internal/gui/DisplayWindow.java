@@ -21,6 +21,7 @@ import javax.swing.WindowConstants;
 import mmcorej.org.json.JSONObject;
 import org.micromanager.ndviewer.api.CanvasMouseListenerInterface;
 import org.micromanager.ndviewer.api.ControlsPanelInterface;
+import org.micromanager.ndviewer.internal.gui.contrast.DisplayHistogram;
 import org.micromanager.ndviewer.main.NDViewer;
 import org.micromanager.ndviewer.overlay.Overlay;
 
@@ -162,13 +163,17 @@ public class DisplayWindow implements WindowListener {
     * Called on EDT. Update image and make sure scrollers are in right positions
     *
     */
-   public void displayImage(Image image, HashMap<String, int[]> hists, DataViewCoords view) {
+   public void displayImage(Image image, HashMap<String, DisplayHistogram> hists, DataViewCoords view) {
       //Make scrollbars reflect image
       subImageControls_.updateScrollerPositions(view);
       imageCanvas_.updateDisplayImage(image, view.getMagnificationFromResLevel());
       sideControls_.updateHistogramData(hists);
    }
 
+   public void updateHistogramData(HashMap<String, DisplayHistogram> hists) {
+      sideControls_.updateHistogramData(hists);
+   }
+
    public void displayOverlay(Overlay overlay) {
       imageCanvas_.updateOverlay(overlay);
       imageCanvas_.getCanvas().repaint();
@@ -5,6 +5,7 @@
  */
 package org.micromanager.ndviewer.internal.gui;
 
+import org.micromanager.ndviewer.internal.gui.contrast.DisplayHistogram;
 import org.micromanager.ndviewer.internal.gui.contrast.ContrastPanel;
 
 import java.awt.*;
@@ -65,7 +66,7 @@ class DisplayWindowControls extends javax.swing.JPanel {
       contrastPanel_.onDisplayClose();
    }
 
-   void updateHistogramData(HashMap<String, int[]> hists) {
+   void updateHistogramData(HashMap<String, DisplayHistogram> hists) {
       contrastPanel_.updateHistogramData(hists);
    }
 
@@ -4,6 +4,8 @@ import mmcorej.org.json.JSONObject;
 import org.micromanager.ndviewer.api.CanvasMouseListenerInterface;
 import org.micromanager.ndviewer.api.ControlsPanelInterface;
 import org.micromanager.ndviewer.api.OverlayerPlugin;
+import org.micromanager.ndviewer.internal.gui.contrast.ChannelHistogram;
+import org.micromanager.ndviewer.internal.gui.contrast.DisplayHistogram;
 import org.micromanager.ndviewer.main.NDViewer;
 import org.micromanager.ndviewer.overlay.Overlay;
 
@@ -12,6 +14,7 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.HashMap;
+import java.util.List;
 
 public class GuiManager {
 
@@ -124,7 +127,7 @@ public class GuiManager {
       displayWindow_ = null;
    }
 
-   public void displayNewImage(Image img, HashMap<String,int[]> hists, DataViewCoords view,
+   public void displayNewImage(Image img, HashMap<String, DisplayHistogram> hists, DataViewCoords view,
                                JSONObject imageMD, OverlayerPlugin overlayerPlugin) {
       displayWindow_.displayImage(img, hists, view);
       displayWindow_.setImageMetadata(imageMD);
@@ -136,14 +139,105 @@ public class GuiManager {
       return imageMaker_.makeOrGetImage(view);
    }
 
+   /**
+    * @return a coarser view to show while the view is loading, or null
+    */
+   public DataViewCoords getPreviewView(DataViewCoords view) {
+      ImageMaker imageMaker = imageMaker_;
+      return imageMaker == null ? null : imageMaker.getPreviewView(view);
+   }
+
+   public void cancelObsoleteImageFetches(DataViewCoords newView) {
+      ImageMaker imageMaker = imageMaker_;
+      if (imageMaker != null) {
+         imageMaker.cancelObsoleteFetches(newView);
+      }
+   }
+
+   public void onAxesPositionsChanged(DataViewCoords view) {
+      ImageMaker imageMaker = imageMaker_;
+      if (imageMaker != null) {
+         imageMaker.getPrefetcher().axesChanged(view);
+      }
+   }
+
+   public void onNewImagesArrived(List<HashMap<String, Object>> axesList) {
+      ImageMaker imageMaker = imageMaker_;
+      if (imageMaker != null) {
+         imageMaker.onNewImagesArrived(axesList);
+      }
+   }
+
+   /**
+    * Forget all cached pixels, since any image may have changed
+    */
+   public void invalidateAllImages() {
+      ImageMaker imageMaker = imageMaker_;
+      if (imageMaker != null) {
+         imageMaker.getImageCache().clear();
+         imageMaker.getHistogramCache().clear();
+         imageMaker.invalidatePixels();
+      }
+   }
+
+   public void setDirectLUTRendering(boolean direct) {
+      ImageMaker imageMaker = imageMaker_;
+      if (imageMaker != null) {
+         imageMaker.setDirectLUTRendering(direct);
+      }
+   }
+
+   public void setPrefetching(boolean enabled, int maxPlanesAhead) {
+      ImageMaker imageMaker = imageMaker_;
+      if (imageMaker != null) {
+         imageMaker.getPrefetcher().setEnabled(enabled);
+         imageMaker.getPrefetcher().setMaxPlanesAhead(maxPlanesAhead);
+      }
+   }
+
+   public void setProgressiveRendering(boolean progressive) {
+      ImageMaker imageMaker = imageMaker_;
+      if (imageMaker != null) {
+         imageMaker.setProgressiveRendering(progressive);
+      }
+   }
+
+   public void setIncrementalPanning(boolean incremental) {
+      ImageMaker imageMaker = imageMaker_;
+      if (imageMaker != null) {
+         imageMaker.setIncrementalPanning(incremental);
+      }
+   }
+
+   public void setHistogramAccuracy(double accuracy, ChannelHistogram.Sampling sampling) {
+      ImageMaker imageMaker = imageMaker_;
+      if (imageMaker != null) {
+         imageMaker.setHistogramAccuracy(accuracy, sampling);
+      }
+   }
+
    public JSONObject getLatestTags() {
       return imageMaker_.getLatestTags();
    }
 
-   public HashMap<String,int[]> getHistograms() {
+   public HashMap<String, DisplayHistogram> getHistograms() {
       return imageMaker_.getHistograms();
    }
 
+   public HistogramCache getHistogramCache() {
+      return imageMaker_.getHistogramCache();
+   }
+
+   public HashMap<String, DisplayHistogram> computeDeferredHistograms() {
+      return imageMaker_.computeDeferredHistograms();
+   }
+
+   public void updateHistogramData(HashMap<String, DisplayHistogram> hists) {
+      if (displayWindow_ != null) {
+         displayWindow_.updateHistogramData(hists);
+      }
+   }
+
    public void expandDisplayedRangeToInclude(java.util.List<HashMap<String, Object>> newIamgeEvents, java.util.List<String> activeChannels) {
       if (displayWindow_ != null) {
          displayWindow_.expandDisplayedRangeToInclude(newIamgeEvents, activeChannels);
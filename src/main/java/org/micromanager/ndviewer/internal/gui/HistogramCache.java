@@ -0,0 +1,469 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.micromanager.ndviewer.internal.gui.contrast.ChannelHistogram;
+
+/**
+ * Least recently used cache of the histograms of images, keyed by their axes,
+ * resolution level and region, so that autoscaling and the histogram display
+ * don't need a pass over the pixels of an image that was seen before. Unlike
+ * {@link DisplayImageCache}, entries don't depend on the pixels still being
+ * cached, and can be saved to and loaded from a sidecar file next to the
+ * dataset. A sidecar file is only loaded if the dataset still has the
+ * fingerprint it had when the file was saved, see {@link #datasetFingerprint}.
+ *
+ * Histograms are stored trimmed to the range of values that occur, which is
+ * typically a small part of the 65536 bins of a 16 bit image. Histograms
+ * counted from pixels that were read before the same axes were invalidated
+ * are not stored, see {@link #getStamp}.
+ *
+ * Like those of a {@link DisplayImageCache}, the caches made by
+ * {@link #createShared} count against the {@link SharedCacheBudget} of the
+ * process rather than having a budget of their own.
+ */
+public class HistogramCache {
+
+   private static final int FILE_MAGIC = 0x4E445648; // "NDVH"
+   private static final int FILE_VERSION = 2;
+   private static final byte INTEGER_POSITION = 0;
+   private static final byte STRING_POSITION = 1;
+   // Name of the sidecar file of datasets stored as a directory
+   private static final String SIDECAR_NAME = "ndviewer_histograms.bin";
+
+   /**
+    * Counts of a histogram between its lowest and highest occupied bins
+    */
+   public static final class Counts {
+
+      private final int numBins;
+      private final int firstBin;
+      private final int[] counts;
+      private final int sampleStep;
+
+      private Counts(int numBins, int firstBin, int[] counts, int sampleStep) {
+         this.numBins = numBins;
+         this.firstBin = firstBin;
+         this.counts = counts;
+         this.sampleStep = sampleStep;
+      }
+
+      /**
+       * @param histogram a histogram on which {@link ChannelHistogram#finish}
+       *                  has been called
+       */
+      public static Counts of(ChannelHistogram histogram) {
+         if (histogram.getTotal() == 0) {
+            return new Counts(histogram.getNumBins(), 0, new int[0], histogram.getSampleStep());
+         }
+         int first = histogram.getPixelMin();
+         int[] counts = new int[histogram.getPixelMax() - first + 1];
+         System.arraycopy(histogram.getCounts(), first, counts, 0, counts.length);
+         return new Counts(histogram.getNumBins(), first, counts, histogram.getSampleStep());
+      }
+
+      public int getNumBins() {
+         return numBins;
+      }
+
+      /**
+       * Replace the counts of a histogram with these
+       */
+      public void copyTo(ChannelHistogram histogram) {
+         histogram.setCounts(counts, firstBin, sampleStep);
+      }
+
+      /**
+       * Add these counts to those of each bin
+       *
+       * @param totals at least {@link #getNumBins} long
+       * @return number of pixels added
+       */
+      public long addTo(long[] totals) {
+         long added = 0;
+         for (int i = 0; i < counts.length; i++) {
+            totals[firstBin + i] += counts[i];
+            added += counts[i];
+         }
+         return added;
+      }
+
+      long getBytes() {
+         return 4L * counts.length + 32;
+      }
+   }
+
+   private static class Entry {
+
+      final Counts counts;
+      // When the histogram was last used, by SharedCacheBudget.nextUse. Guarded by monitor on the cache
+      long lastUse = SharedCacheBudget.nextUse();
+
+      Entry(Counts counts) {
+         this.counts = counts;
+      }
+   }
+
+   // Guarded by monitor on this
+   private final LinkedHashMap<DisplayImageCache.Key, Entry> entries_ =
+           new LinkedHashMap<DisplayImageCache.Key, Entry>(16, 0.75f, true);
+   private long maxBytes_;
+   private long bytes_ = 0;
+   private long stamp_ = 0;
+   private final boolean shared_;
+   // Set once a shared cache is released, after which nothing is stored. Guarded by monitor on this
+   private boolean released_ = false;
+   private final SharedCacheBudget.Member budgetMember_ = new SharedCacheBudget.Member() {
+      @Override
+      public long getOldestUse() {
+         synchronized (HistogramCache.this) {
+            Iterator<Entry> it = entries_.values().iterator();
+            return it.hasNext() ? it.next().lastUse : Long.MAX_VALUE;
+         }
+      }
+
+      @Override
+      public boolean evictOldest() {
+         synchronized (HistogramCache.this) {
+            Iterator<Entry> it = entries_.values().iterator();
+            if (!it.hasNext()) {
+               return false;
+            }
+            addBytes(-it.next().counts.getBytes());
+            it.remove();
+            return true;
+         }
+      }
+   };
+
+   /**
+    * @param maxBytes budget of this cache alone
+    */
+   public HistogramCache(long maxBytes) {
+      this(maxBytes, false);
+   }
+
+   private HistogramCache(long maxBytes, boolean shared) {
+      maxBytes_ = maxBytes;
+      shared_ = shared;
+   }
+
+   /**
+    * @return a cache that counts against the budget shared by the process.
+    * Call {@link #release} once it is no longer used
+    */
+   public static HistogramCache createShared() {
+      HistogramCache cache = new HistogramCache(Long.MAX_VALUE, true);
+      SharedCacheBudget.register(cache.budgetMember_);
+      return cache;
+   }
+
+   /**
+    * Empty a cache made by {@link #createShared} and stop counting it against
+    * the shared budget.
+    */
+   public void release() {
+      synchronized (this) {
+         released_ = true;
+         clear();
+      }
+      SharedCacheBudget.unregister(budgetMember_);
+   }
+
+   /**
+    * @return the histogram of the image, or null if it isn't cached
+    */
+   public synchronized Counts get(DisplayImageCache.Key key) {
+      Entry e = entries_.get(key);
+      if (e == null) {
+         return null;
+      }
+      e.lastUse = SharedCacheBudget.nextUse();
+      return e.counts;
+   }
+
+   /**
+    * Call before reading the pixels a histogram will be counted from.
+    *
+    * @return stamp to be passed to {@link #put}
+    */
+   public synchronized long getStamp() {
+      return stamp_;
+   }
+
+   /**
+    * Store the histogram of an image, unless images were invalidated since
+    * the stamp was taken.
+    *
+    * @param histogram a histogram on which {@link ChannelHistogram#finish}
+    *                  has been called
+    */
+   public void put(DisplayImageCache.Key key, long stamp, ChannelHistogram histogram) {
+      Counts counts = Counts.of(histogram);
+      synchronized (this) {
+         if (stamp == stamp_) {
+            store(key, counts);
+         }
+      }
+      if (shared_) {
+         SharedCacheBudget.trim();
+      }
+   }
+
+   // Guarded by monitor on this
+   private void store(DisplayImageCache.Key key, Counts counts) {
+      if (released_) {
+         return;
+      }
+      Entry old = entries_.put(key, new Entry(counts));
+      if (old != null) {
+         addBytes(-old.counts.getBytes());
+      }
+      addBytes(counts.getBytes());
+      trim();
+   }
+
+   // Guarded by monitor on this
+   private void addBytes(long bytes) {
+      bytes_ += bytes;
+      if (shared_) {
+         SharedCacheBudget.addBytes(bytes);
+      }
+   }
+
+   /**
+    * Remove the histograms of all images with the given axes, at any
+    * resolution or region.
+    */
+   public synchronized void invalidate(Collection<? extends Map<String, Object>> axesList) {
+      if (axesList.isEmpty()) {
+         return;
+      }
+      stamp_++;
+      HashSet<AxesKey> axesSet = new HashSet<AxesKey>();
+      for (Map<String, Object> axes : axesList) {
+         axesSet.add(AxesKey.of(axes));
+      }
+      Iterator<Map.Entry<DisplayImageCache.Key, Entry>> it = entries_.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<DisplayImageCache.Key, Entry> e = it.next();
+         if (axesSet.contains(e.getKey().getAxesKey())) {
+            addBytes(-e.getValue().counts.getBytes());
+            it.remove();
+         }
+      }
+   }
+
+   public synchronized void clear() {
+      stamp_++;
+      entries_.clear();
+      addBytes(-bytes_);
+   }
+
+   public synchronized void setMaxBytes(long maxBytes) {
+      maxBytes_ = maxBytes;
+      trim();
+   }
+
+   public synchronized long getSizeInBytes() {
+      return bytes_;
+   }
+
+   public synchronized int size() {
+      return entries_.size();
+   }
+
+   private void trim() {
+      Iterator<Entry> it = entries_.values().iterator();
+      while (bytes_ > maxBytes_ && it.hasNext()) {
+         addBytes(-it.next().counts.getBytes());
+         it.remove();
+      }
+   }
+
+   /**
+    * @param diskLocation where a dataset is stored, as given by the data source
+    * @return file to keep the histograms of the dataset in, or null if it
+    * isn't on disk
+    */
+   public static File sidecarFile(String diskLocation) {
+      if (diskLocation == null || diskLocation.isEmpty()) {
+         return null;
+      }
+      File location = new File(diskLocation);
+      if (location.isDirectory()) {
+         return new File(location, SIDECAR_NAME);
+      }
+      return new File(location.getAbsoluteFile().getParentFile(), location.getName() + ".histograms.bin");
+   }
+
+   /**
+    * Describe the state of a dataset on disk, so that histograms saved for it
+    * aren't loaded once it was changed or replaced. This covers its size and
+    * bit depth as well as the newest modification time and the total length
+    * of its files, leaving out sidecar files.
+    *
+    * @param diskLocation where the dataset is stored, as given by the data source
+    * @param bounds       bounds of the dataset as given by the data source, or null
+    * @param bitDepth     bit depth of its images
+    * @return fingerprint to pass to {@link #save} and {@link #load}
+    */
+   public static String datasetFingerprint(String diskLocation, int[] bounds, int bitDepth) {
+      long[] modifiedAndLength = new long[2];
+      if (diskLocation != null && !diskLocation.isEmpty()) {
+         addModifiedAndLength(new File(diskLocation), modifiedAndLength);
+      }
+      return Arrays.toString(bounds) + " " + bitDepth + " " + modifiedAndLength[0]
+              + " " + modifiedAndLength[1];
+   }
+
+   private static void addModifiedAndLength(File file, long[] modifiedAndLength) {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            addModifiedAndLength(child, modifiedAndLength);
+         }
+      } else if (file.isFile() && !file.getName().startsWith(SIDECAR_NAME)) {
+         modifiedAndLength[0] = Math.max(modifiedAndLength[0], file.lastModified());
+         modifiedAndLength[1] += file.length();
+      }
+   }
+
+   /**
+    * Write all cached histograms to a file. Histograms of images with axes
+    * positions other than integers and strings are left out.
+    *
+    * @param fingerprint of the dataset, from {@link #datasetFingerprint}
+    */
+   public void save(File file, String fingerprint) throws IOException {
+      List<Map.Entry<DisplayImageCache.Key, Counts>> saved = new ArrayList<>();
+      synchronized (this) {
+         for (Map.Entry<DisplayImageCache.Key, Entry> e : entries_.entrySet()) {
+            if (isSaveable(e.getKey().getAxes())) {
+               saved.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().counts));
+            }
+         }
+      }
+      // Write to a temporary file first, so a failure doesn't leave a truncated sidecar
+      File temp = new File(file.getPath() + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+              new GZIPOutputStream(new FileOutputStream(temp))))) {
+         out.writeInt(FILE_MAGIC);
+         out.writeInt(FILE_VERSION);
+         out.writeUTF(fingerprint);
+         out.writeInt(saved.size());
+         for (Map.Entry<DisplayImageCache.Key, Counts> e : saved) {
+            DisplayImageCache.Key key = e.getKey();
+            HashMap<String, Object> axes = key.getAxes();
+            out.writeInt(axes.size());
+            for (Map.Entry<String, Object> axis : axes.entrySet()) {
+               out.writeUTF(axis.getKey());
+               if (axis.getValue() instanceof Integer) {
+                  out.writeByte(INTEGER_POSITION);
+                  out.writeInt((Integer) axis.getValue());
+               } else {
+                  out.writeByte(STRING_POSITION);
+                  out.writeUTF((String) axis.getValue());
+               }
+            }
+            out.writeInt(key.getResolutionIndex());
+            out.writeLong(key.getXOffset());
+            out.writeLong(key.getYOffset());
+            out.writeInt(key.getWidth());
+            out.writeInt(key.getHeight());
+            Counts counts = e.getValue();
+            out.writeInt(counts.numBins);
+            out.writeInt(counts.sampleStep);
+            out.writeInt(counts.firstBin);
+            out.writeInt(counts.counts.length);
+            for (int c : counts.counts) {
+               out.writeInt(c);
+            }
+         }
+      }
+      if (file.exists() && !file.delete()) {
+         throw new IOException("Couldn't replace " + file);
+      }
+      if (!temp.renameTo(file)) {
+         throw new IOException("Couldn't rename " + temp + " to " + file);
+      }
+   }
+
+   private static boolean isSaveable(Map<String, Object> axes) {
+      for (Object position : axes.values()) {
+         if (!(position instanceof Integer) && !(position instanceof String)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Add the histograms in a file written by {@link #save} to the cache,
+    * unless the file was saved for a dataset with a different fingerprint or
+    * by a different version.
+    *
+    * @param fingerprint of the dataset, from {@link #datasetFingerprint}
+    * @return number of histograms read
+    */
+   public int load(File file, String fingerprint) throws IOException {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+              new GZIPInputStream(new FileInputStream(file))))) {
+         if (in.readInt() != FILE_MAGIC) {
+            throw new IOException("Not a histogram file: " + file);
+         }
+         // Histograms that don't match the dataset are replaced when the viewer is closed
+         if (in.readInt() != FILE_VERSION || !in.readUTF().equals(fingerprint)) {
+            return 0;
+         }
+         int numEntries = in.readInt();
+         for (int i = 0; i < numEntries; i++) {
+            int numAxes = in.readInt();
+            HashMap<String, Object> axes = new HashMap<String, Object>();
+            for (int a = 0; a < numAxes; a++) {
+               String axis = in.readUTF();
+               axes.put(axis, in.readByte() == INTEGER_POSITION ? (Object) in.readInt() : in.readUTF());
+            }
+            DisplayImageCache.Key key = new DisplayImageCache.Key(AxesKey.of(axes), in.readInt(),
+                    in.readLong(), in.readLong(), in.readInt(), in.readInt());
+            int numBins = in.readInt();
+            int sampleStep = in.readInt();
+            int firstBin = in.readInt();
+            int length = in.readInt();
+            if (firstBin < 0 || length < 0 || firstBin + length > numBins || numBins > 65536) {
+               throw new IOException("Corrupt histogram file: " + file);
+            }
+            int[] counts = new int[length];
+            for (int c = 0; c < counts.length; c++) {
+               counts[c] = in.readInt();
+            }
+            synchronized (this) {
+               store(key, new Counts(numBins, firstBin, counts, sampleStep));
+            }
+         }
+         if (shared_) {
+            SharedCacheBudget.trim();
+         }
+         return numEntries;
+      }
+   }
+}
@@ -0,0 +1,202 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue of new image notifications, so that whoever is acquiring
+ * images never waits on the viewer. Notifications are handed to the viewer in
+ * batches on a thread of its own. What happens when the viewer falls so far
+ * behind that the queue fills up is set by an {@link OverflowPolicy}.
+ */
+public class ImageArrivalQueue {
+
+   public enum OverflowPolicy {
+      /**
+       * Discard notifications that arrive while the queue is full
+       */
+      DROP_NEWEST,
+      /**
+       * Discard the oldest queued notification to make room
+       */
+      DROP_OLDEST,
+      /**
+       * Collapse all notifications that didn't fit into a single one, handled
+       * after the queue has been drained. The overflow handler is given the
+       * most recent of them and should catch up by other means, e.g. by
+       * rereading the image keys of the data source. Until then, later
+       * notifications are merged too, so that none newer than the merged one
+       * is handled before it
+       */
+      MERGE
+   }
+
+   public static final int DEFAULT_CAPACITY = 10000;
+   private static final int MAX_BATCH_SIZE = 1000;
+
+   private final ConcurrentLinkedQueue<HashMap<String, Object>> queue_ = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger size_ = new AtomicInteger();
+   private final Consumer<List<HashMap<String, Object>>> batchHandler_;
+   private final Consumer<HashMap<String, Object>> overflowHandler_;
+   private final Thread thread_;
+   private final AtomicBoolean parked_ = new AtomicBoolean();
+   private volatile boolean running_ = true;
+   private volatile int capacity_ = DEFAULT_CAPACITY;
+   private volatile OverflowPolicy policy_ = OverflowPolicy.MERGE;
+   // Most recent notification merged away since the last overflow was handled
+   private final AtomicReference<HashMap<String, Object>> merged_ = new AtomicReference<>();
+
+   private final AtomicLong dropped_ = new AtomicLong();
+   private final AtomicLong mergedCount_ = new AtomicLong();
+
+   /**
+    * @param name name of the thread on which notifications are handled
+    * @param batchHandler called with each batch of notifications, in order
+    * @param overflowHandler called with the latest merged notification after
+    *                        notifications were merged under
+    *                        {@link OverflowPolicy#MERGE}
+    */
+   public ImageArrivalQueue(String name, Consumer<List<HashMap<String, Object>>> batchHandler,
+                            Consumer<HashMap<String, Object>> overflowHandler) {
+      batchHandler_ = batchHandler;
+      overflowHandler_ = overflowHandler;
+      thread_ = new Thread(this::drainLoop, name);
+      thread_.setDaemon(true);
+      thread_.start();
+   }
+
+   public void setCapacity(int capacity) {
+      capacity_ = Math.max(1, capacity);
+   }
+
+   public void setOverflowPolicy(OverflowPolicy policy) {
+      policy_ = policy;
+   }
+
+   /**
+    * Queue a notification. Never blocks.
+    *
+    * @return false if the notification was dropped or merged
+    */
+   public boolean offer(HashMap<String, Object> axesPositions) {
+      if (!running_) {
+         return false;
+      }
+      if (policy_ == OverflowPolicy.MERGE && merged_.get() != null) {
+         return merge(axesPositions);
+      }
+      if (size_.incrementAndGet() > capacity_) {
+         size_.decrementAndGet();
+         switch (policy_) {
+            case DROP_NEWEST:
+               dropped_.incrementAndGet();
+               return false;
+            case DROP_OLDEST:
+               if (queue_.poll() != null) {
+                  dropped_.incrementAndGet();
+               } else {
+                  size_.incrementAndGet(); // Drained meanwhile, so there's room after all
+               }
+               queue_.add(axesPositions);
+               wake();
+               return true;
+            default:
+               return merge(axesPositions);
+         }
+      }
+      queue_.add(axesPositions);
+      wake();
+      return true;
+   }
+
+   private boolean merge(HashMap<String, Object> axesPositions) {
+      merged_.set(axesPositions);
+      mergedCount_.incrementAndGet();
+      wake();
+      return false;
+   }
+
+   private void wake() {
+      if (parked_.get()) {
+         LockSupport.unpark(thread_);
+      }
+   }
+
+   private void drainLoop() {
+      List<HashMap<String, Object>> batch = new ArrayList<>();
+      while (running_) {
+         HashMap<String, Object> axes;
+         while (batch.size() < MAX_BATCH_SIZE && (axes = queue_.poll()) != null) {
+            size_.decrementAndGet();
+            batch.add(axes);
+         }
+         if (!batch.isEmpty()) {
+            handle(batch);
+            batch = new ArrayList<>();
+            continue;
+         }
+         HashMap<String, Object> latestMerged = merged_.getAndSet(null);
+         if (latestMerged != null) {
+            try {
+               overflowHandler_.accept(latestMerged);
+            } catch (Exception e) {
+               e.printStackTrace();
+            }
+            continue;
+         }
+         parked_.set(true);
+         // Check again so a notification queued just before parking isn't missed
+         if (queue_.isEmpty() && merged_.get() == null && running_) {
+            LockSupport.park(this);
+         }
+         parked_.set(false);
+      }
+   }
+
+   private void handle(List<HashMap<String, Object>> batch) {
+      try {
+         batchHandler_.accept(batch);
+      } catch (Exception e) {
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * @return number of notifications discarded under the drop policies
+    */
+   public long getDroppedCount() {
+      return dropped_.get();
+   }
+
+   /**
+    * @return number of notifications collapsed under the merge policy
+    */
+   public long getMergedCount() {
+      return mergedCount_.get();
+   }
+
+   /**
+    * Stop handling notifications, and wait for a batch that is being handled
+    * to finish
+    */
+   public void shutdown() {
+      running_ = false;
+      LockSupport.unpark(thread_);
+      queue_.clear();
+      if (Thread.currentThread() != thread_) {
+         try {
+            thread_.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+}
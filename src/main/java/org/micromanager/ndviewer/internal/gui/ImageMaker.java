@@ -1,6 +1,7 @@
 package org.micromanager.ndviewer.internal.gui;
 
-import org.micromanager.ndviewer.internal.gui.contrast.HistogramUtils;
+import org.micromanager.ndviewer.internal.gui.contrast.ChannelHistogram;
+import org.micromanager.ndviewer.internal.gui.contrast.DisplayHistogram;
 import org.micromanager.ndviewer.internal.gui.contrast.LUT;
 import java.awt.Color;
 import java.awt.image.DirectColorModel;
@@ -8,8 +9,20 @@ import java.awt.image.IndexColorModel;
 import java.awt.Image;
 import java.awt.Toolkit;
 import java.awt.image.MemoryImageSource;
+import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONObject;
@@ -23,6 +36,20 @@ import org.micromanager.ndviewer.api.NDViewerDataSource;
  */
 public class ImageMaker {
 
+   // Never read a preview more than this many resolution levels coarser than the view
+   private static final int MAX_PREVIEW_LEVELS = 3;
+   private static final AtomicLong LUT_GENERATIONS = new AtomicLong();
+
+   // Threads on which blocking data source reads happen, so all channels of a frame
+   // can be requested at once. Shared by all viewers, as is the pool below
+   private static final ExecutorService FETCH_EXECUTOR = sharedPool(
+           Math.max(2, Runtime.getRuntime().availableProcessors()), "Image fetch thread",
+           Thread.NORM_PRIORITY);
+   // Bounded pool on which each channel's pixels are converted to 8 bit and histogrammed
+   private static final ExecutorService CHANNEL_PROCESSING_EXECUTOR = sharedPool(
+           Math.min(8, Math.max(1, Runtime.getRuntime().availableProcessors())), "Channel processing thread",
+           Thread.NORM_PRIORITY);
+
    public static final int EIGHTBIT = 0;
    public static final int SIXTEENBIT = 1;
 
@@ -38,49 +65,352 @@ public class ImageMaker {
    private NDViewer display_;
    private boolean closed_ = false;
 
+   // Fetch and processing tasks for the frame currently being computed. Guarded by monitor on itself
+   private final List<Future<?>> pendingFetches_ = new ArrayList<Future<?>>();
+   private final ChannelCompositor compositor_ = new ChannelCompositor();
+   private volatile DataViewCoords pendingView_;
+   private volatile boolean lastFrameCancelled_ = false;
+   // Map raw pixels straight to RGB through a per-channel table instead of going through
+   // an intermediate 8 bit image. RGB images always use the 8 bit path
+   private volatile boolean directLUTRendering_ = true;
+   // Draw an upscaled coarser resolution level while the requested one is loading
+   private volatile boolean progressiveRendering_ = true;
+   // When the view only moves sideways, shift what is already shown and read just the
+   // newly exposed strips
+   private volatile boolean incrementalPanning_ = true;
+   // Most pixels counted into each histogram, and how they are chosen when sampling
+   private volatile int histogramSamples_ = ChannelHistogram.samplesForAccuracy(ChannelHistogram.DEFAULT_ACCURACY);
+   private volatile ChannelHistogram.Sampling histogramSampling_ = ChannelHistogram.Sampling.BLOCK;
+   // Channels composited into rgbPixels_ by the last frame. Only accessed from within makeOrGetImage
+   private List<String> compositedChannels_ = null;
+   // View and images that the channel processors currently hold pixels for, so that frames
+   // where only display settings changed don't need to go back to the data source.
+   // Only accessed from within makeOrGetImage
+   private DataViewCoords fetchedView_ = null;
+   private final HashMap<String, TaggedImage> fetchedImages_ = new HashMap<String, TaggedImage>();
+   private volatile boolean pixelsStale_ = false;
+   // Recently displayed images, so scrolling back and forth doesn't go to the data source
+   // each time. Counts against a budget shared with other viewers
+   private final DisplayImageCache imageCache_ = DisplayImageCache.createShared();
+   private final PlanePrefetcher prefetcher_ = new PlanePrefetcher(this, imageCache_);
+   // Histograms of images seen before, kept after their pixels are evicted. Also counts
+   // against the shared budget
+   private final HistogramCache histogramCache_ = HistogramCache.createShared();
+   // Composited tiles, reused across pans and zooms within a resolution level. Also
+   // counts against the shared budget
+   private final RenderTileGrid tileGrid_ = new RenderTileGrid();
+
    public ImageMaker(NDViewer c, NDViewerDataSource data) {
       display_ = c;
       data_ = data;
    }
 
+   /**
+    * @return pool of daemon threads that exit when idle, so that pools
+    * shared by all viewers don't need to be shut down
+    */
+   static ExecutorService sharedPool(int numThreads, String threadName, int priority) {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads,
+              30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+                 Thread t = new Thread(r, threadName);
+                 t.setDaemon(true);
+                 t.setPriority(priority);
+                 return t;
+              });
+      pool.allowCoreThreadTimeOut(true);
+      return pool;
+   }
+
    public void close() {
       closed_ = true;
+      // The pools are shared with other viewers, so only this viewer's tasks are stopped
+      cancelPendingFetches();
+      prefetcher_.shutdown();
+      imageCache_.release();
+      histogramCache_.release();
+      tileGrid_.release();
       display_ = null;
       data_ = null;
    }
 
+   /**
+    * Called when a newer view has been requested. If the frame currently being
+    * computed needs different pixels, its outstanding fetches are cancelled so
+    * that the newer frame can start sooner. To guarantee that something is
+    * eventually shown while views keep changing, a frame is never cancelled
+    * right after another one was.
+    */
+   public void cancelObsoleteFetches(DataViewCoords newView) {
+      DataViewCoords pending = pendingView_;
+      if (pending == null || lastFrameCancelled_ || !needsDifferentPixels(pending, newView)) {
+         return;
+      }
+      cancelPendingFetches();
+   }
+
+   /**
+    * Run work on a channel processor on the channel processing pool. Cancelling
+    * a frame doesn't stop tasks that already started, so they may still be
+    * running when the next frame reuses the same processor. Tasks on one
+    * processor therefore run one at a time, and a task that a newer one was
+    * submitted after does nothing once it gets to run.
+    */
+   private Future<TaggedImage> submitChannelTask(NDVImageProcessor processor,
+                                                 Callable<TaggedImage> task) {
+      final int generation = processor.taskGeneration.incrementAndGet();
+      return CHANNEL_PROCESSING_EXECUTOR.submit(() -> {
+         synchronized (processor) {
+            if (processor.taskGeneration.get() != generation) {
+               throw new CancellationException();
+            }
+            return task.call();
+         }
+      });
+   }
+
+   private void cancelPendingFetches() {
+      synchronized (pendingFetches_) {
+         for (Future<?> f : pendingFetches_) {
+            f.cancel(true);
+         }
+         pendingFetches_.clear();
+      }
+   }
+
+   /**
+    * Signal that data in the data source may have changed, so pixels held from
+    * previous frames can't be reused.
+    */
+   public void invalidatePixels() {
+      pixelsStale_ = true;
+      tileGrid_.clear();
+   }
+
+   /**
+    * Called when new images arrive, so that any cached image with the same
+    * axes is dropped.
+    */
+   public void onNewImagesArrived(Collection<? extends Map<String, Object>> axesList) {
+      imageCache_.invalidate(axesList);
+      histogramCache_.invalidate(axesList);
+      invalidatePixels();
+   }
+
+   public DisplayImageCache getImageCache() {
+      return imageCache_;
+   }
+
+   public HistogramCache getHistogramCache() {
+      return histogramCache_;
+   }
+
+   public PlanePrefetcher getPrefetcher() {
+      return prefetcher_;
+   }
+
+   private static boolean needsDifferentPixels(DataViewCoords a, DataViewCoords b) {
+      if (a.getResolutionIndex() != b.getResolutionIndex()
+              || a.getViewOffsetX() != b.getViewOffsetX() || a.getViewOffsetY() != b.getViewOffsetY()
+              || a.getFullResSourceDataWidth() != b.getFullResSourceDataWidth()
+              || a.getFullResSourceDataHeight() != b.getFullResSourceDataHeight()) {
+         return true;
+      }
+      // The channel position gets replaced by each displayed channel, so it doesn't
+      // change which pixels are needed
+      return !nonChannelAxes(a).equals(nonChannelAxes(b));
+   }
+
+   public void setDirectLUTRendering(boolean direct) {
+      directLUTRendering_ = direct;
+   }
+
+   public void setProgressiveRendering(boolean progressive) {
+      progressiveRendering_ = progressive;
+   }
+
+   public void setIncrementalPanning(boolean incremental) {
+      incrementalPanning_ = incremental;
+   }
+
+   /**
+    * Check whether the pixels for a view can be made by shifting those of a
+    * previous view, because it only moved sideways by less than its size.
+    *
+    * @return the shift, or null if the views differ in any other way
+    */
+   private PanShift panShiftBetween(DataViewCoords from, DataViewCoords to) {
+      if (!incrementalPanning_ || from == null || to.isRGB()
+              || from.getResolutionIndex() != to.getResolutionIndex()) {
+         return null;
+      }
+      DataViewCoords moved = from.copy();
+      moved.setViewOffset(to.getViewOffsetX(), to.getViewOffsetY());
+      if (needsDifferentPixels(moved, to)) {
+         return null;
+      }
+      // Same rounding as the offsets requested from the data source
+      double downsample = to.getDownsampleFactor();
+      long dx = (long) (to.getViewOffsetX() / downsample) - (long) (from.getViewOffsetX() / downsample);
+      long dy = (long) (to.getViewOffsetY() / downsample) - (long) (from.getViewOffsetY() / downsample);
+      int width = (int) to.getSourceImageWidthAtResLevel();
+      int height = (int) to.getSourceImageHeightAtResLevel();
+      if ((dx == 0 && dy == 0) || Math.abs(dx) >= width || Math.abs(dy) >= height) {
+         return null;
+      }
+      return new PanShift((int) dx, (int) dy, width, height);
+   }
+
+   /**
+    * Pick a coarser resolution level of the view that can be shown, upscaled,
+    * while the view itself is loading. This is the finest coarser level for
+    * which cached images cover the view in every channel, which are cropped
+    * to the view and cached so that drawing it doesn't read from the data
+    * source. If there is none, it is the coarsest level at most
+    * MAX_PREVIEW_LEVELS coarser, which is cheap to read.
+    *
+    * @return the coarser view, or null if the view can be drawn without
+    * reading from the data source
+    */
+   public synchronized DataViewCoords getPreviewView(DataViewCoords view) {
+      if (!progressiveRendering_ || closed_) {
+         return null;
+      }
+      int maxResIndex = data_.getMaxResolutionIndex();
+      if (view.getResolutionIndex() >= maxResIndex) {
+         return null;
+      }
+      if (!pixelsStale_ && fetchedView_ != null && (!needsDifferentPixels(fetchedView_, view)
+              || panShiftBetween(fetchedView_, view) != null)) {
+         return null; // Only display settings changed, or only a strip needs to be read
+      }
+      List<String> channels = getActiveChannels();
+      if (channels.isEmpty() || isCached(view, channels)) {
+         return null;
+      }
+      for (int resIndex = view.getResolutionIndex() + 1; resIndex <= maxResIndex; resIndex++) {
+         DataViewCoords coarser = view.copyAtResolutionIndex(resIndex);
+         if (cacheCoveringImages(coarser, channels)) {
+            return coarser;
+         }
+      }
+      return view.copyAtResolutionIndex(Math.min(maxResIndex,
+              view.getResolutionIndex() + MAX_PREVIEW_LEVELS));
+   }
+
+   /**
+    * Cache the images of a view cropped out of larger cached images at the
+    * same resolution level, if there are some for every channel.
+    *
+    * @return whether all images of the view are now cached
+    */
+   private boolean cacheCoveringImages(DataViewCoords view, List<String> channels) {
+      List<DisplayImageCache.Key> keys = new ArrayList<DisplayImageCache.Key>();
+      List<TaggedImage> images = new ArrayList<TaggedImage>();
+      for (String channel : channels) {
+         DisplayImageCache.Key key = requestFor(view, view.getAxesKey(), channel);
+         if (imageCache_.contains(key)) {
+            continue;
+         }
+         TaggedImage image = imageCache_.getCovering(key);
+         if (image == null) {
+            return false;
+         }
+         keys.add(key);
+         images.add(image);
+      }
+      for (int i = 0; i < keys.size(); i++) {
+         DisplayImageCache.Key key = keys.get(i);
+         imageCache_.put(key, imageCache_.beginFetch(key), images.get(i));
+      }
+      return true;
+   }
+
+   private boolean isCached(DataViewCoords view, List<String> channels) {
+      for (String channel : channels) {
+         if (!imageCache_.contains(requestFor(view, view.getAxesKey(), channel))) {
+            return false;
+         }
+      }
+      return true;
+   }
+
    public JSONObject getLatestTags() {
       return latestTags_;
    }
 
-   private TaggedImage getDisplayImage(HashMap<String, Object> axes,
-                                         int resolutionindex, double xOffset, double yOffset,
-                                         int imageWidth, int imageHeight) {
+   /**
+    * Work out exactly what to request from the data source for one channel of
+    * a view.
+    *
+    * @param viewCoords the view
+    * @param viewAxes scrollbar positions, normally those of the view
+    * @param channel the channel to request
+    */
+   DisplayImageCache.Key requestFor(DataViewCoords viewCoords, AxesKey viewAxes,
+                                    String channel) {
+      double downsample = viewCoords.getDownsampleFactor();
+      int imagePixelWidth = (int) (viewCoords.getFullResSourceDataWidth() / downsample);
+      int imagePixelHeight = (int) (viewCoords.getFullResSourceDataHeight() / downsample);
+      long viewOffsetAtResX = (long) (viewCoords.getViewOffsetX() / downsample);
+      long viewOffsetAtResY = (long) (viewCoords.getViewOffsetY() / downsample);
 
-      //The axes requested correspond to every scrollbar in the viewer. But all axes dont have to apply
-      //  to every channel (for example, a maximum intensity projection doesnt have z axis). So search
-      //   through all axes currently stored for this channel, and delete any axes from the request that arent present
-      Set<HashMap<String, Object>> allImageKeys = data_.getImageKeys();
-      HashSet<String> axesInChannel = new HashSet<String>();
-      // If some axes aren't provided,
-      for (HashMap<String, Object> key : allImageKeys) {
-         if ((key.containsKey("channel") && axes.containsKey("channel") &&
-                 key.get("channel").equals(axes.get("channel")) )) {
-               axesInChannel.addAll(key.keySet());
-            } else if (!axes.containsKey("channel")) {
-               axesInChannel.addAll(axes.keySet());
-         }
+      AxesKey axes = viewAxes;
+      // axes contains a single position for channel, reflecting where the scrollbar is set. But we
+      // actually want to display all channels at once, so replace this with the one we are currently adding
+      // UNLESS the one we are currently adding is actually a dummy channel name because there are no channels
+      if (!channel.equals(NDViewer.NO_CHANNEL)) {
+         axes = removeAxesNotInChannel(axes.with(NDViewer.CHANNEL_AXIS, channel), channel);
+      } else {
+         axes = axes.without(NDViewer.CHANNEL_AXIS);
       }
+      return new DisplayImageCache.Key(axes, viewCoords.getResolutionIndex(),
+              viewOffsetAtResX, viewOffsetAtResY, imagePixelWidth, imagePixelHeight);
+   }
 
-      String[] requestedAxes = axes.keySet().toArray(new String[0]);
-      for (String axis : requestedAxes) {
-         if (!axis.equals("channel") && !axesInChannel.contains(axis)) {
-            axes.remove(axis);
+   /**
+    * @return the channels that are currently drawn
+    */
+   List<String> getActiveChannels() {
+      List<String> active = new ArrayList<String>();
+      NDViewer display = display_;
+      if (display == null) {
+         return active;
+      }
+      for (String channel : display.getDisplayModel().getDisplayedChannels()) {
+         if (display.getDisplaySettingsObject().getSnapshot().isActive(channel)) {
+            active.add(channel);
          }
       }
+      return active;
+   }
 
-      return data_.getImageForDisplay(
-              axes, resolutionindex, xOffset, yOffset, imageWidth, imageHeight);
+   NDViewerDataSource getDataSource() {
+      return data_;
+   }
+
+   ChannelAxesIndex getAxesIndex() {
+      NDViewer display = display_;
+      return display == null ? null : display.getDisplayModel().getAxesIndex();
+   }
+
+   private static AxesKey nonChannelAxes(DataViewCoords view) {
+      return view.getAxesKey().without(NDViewer.CHANNEL_AXIS);
+   }
+
+   private AxesKey removeAxesNotInChannel(AxesKey axes, String channel) {
+
+      //The axes requested correspond to every scrollbar in the viewer. But all axes dont have to apply
+      //  to every channel (for example, a maximum intensity projection doesnt have z axis). So look up
+      //   the axes currently stored for this channel, and delete any axes from the request that arent present
+      ChannelAxesIndex axesIndex = display_.getDisplayModel().getAxesIndex();
+      if (axesIndex.isEmpty()) {
+         // Nothing has been indexed yet, so seed the index from the data source
+         for (HashMap<String, Object> key : data_.getImageKeys()) {
+            axesIndex.addImageKey(key);
+         }
+      }
+      Set<String> axesInChannel = axesIndex.getAxesInChannel(channel);
+      return axes.retainAxes(axesInChannel, NDViewer.CHANNEL_AXIS);
    }
 
    /**
@@ -95,11 +425,12 @@ public class ImageMaker {
       try {
 
          boolean remakeDisplayImage = false; //remake the actual Iamge object if size has changed, otherwise just set pixels
-      if (((int) viewCoords.getSourceImageSizeAtResLevel().x) != imageWidth_
-              || ((int)viewCoords.getSourceImageSizeAtResLevel().y) != imageHeight_) {
-         imageWidth_ = (int) viewCoords.getSourceImageSizeAtResLevel().x;
-         imageHeight_ = (int) viewCoords.getSourceImageSizeAtResLevel().y;
+      if (((int) viewCoords.getSourceImageWidthAtResLevel()) != imageWidth_
+              || ((int) viewCoords.getSourceImageHeightAtResLevel()) != imageHeight_) {
+         imageWidth_ = (int) viewCoords.getSourceImageWidthAtResLevel();
+         imageHeight_ = (int) viewCoords.getSourceImageHeightAtResLevel();
          rgbPixels_ = new int[imageWidth_ * imageHeight_];
+         imageSource_ = null; // in case this frame gets cancelled before the image is remade
          remakeDisplayImage = true;
       }
 
@@ -108,14 +439,37 @@ public class ImageMaker {
          for (String existingChannelName : channelProcessors_.keySet()) {
             if (!display_.getDisplayModel().getDisplayedChannels().contains(existingChannelName)) {
                channelProcessors_.remove(existingChannelName);
+               fetchedImages_.remove(existingChannelName);
             }
          }
 
       //update pixels
+      List<String> processedChannels = new ArrayList<String>();
+      PanShift pan = null;
+      List<String> pannedChannels = new ArrayList<String>();
       if (display_.getDisplayModel().getDisplayedChannels() != null) {
          latestTags_ = null;
          DisplayModel displayModel = display_.getDisplayModel();
          List<String> channels = new LinkedList<String>(displayModel.getDisplayedChannels());
+         // Request all active channels at once, and convert each one as soon as its pixels arrive
+         LinkedHashMap<String, Future<TaggedImage>> channelTasks = new LinkedHashMap<String, Future<TaggedImage>>();
+         pendingView_ = viewCoords;
+         // If the same pixels are needed as last frame (i.e. only contrast, gamma, color, or
+         // the set of active channels changed) remap what the channel processors already hold
+         boolean stale = pixelsStale_;
+         pixelsStale_ = false;
+         HashMap<String, TaggedImage> heldImages = null;
+         if (stale || fetchedView_ == null || needsDifferentPixels(fetchedView_, viewCoords)) {
+            // If the view was only panned, keep what was fetched for the previous frame around
+            // so it can be shifted into place
+            pan = stale || remakeDisplayImage ? null : panShiftBetween(fetchedView_, viewCoords);
+            if (pan != null) {
+               heldImages = new HashMap<String, TaggedImage>(fetchedImages_);
+            }
+            fetchedImages_.clear();
+         }
+
+         boolean renderNeedsIO = false;
          for (String channel : channels) {
             //create channel processors as needed
             if (!channelProcessors_.containsKey(channel)) {
@@ -123,120 +477,203 @@ public class ImageMaker {
                        new NDVImageProcessor(imageWidth_, imageHeight_, channel));
             }
 
-            if (!display_.getDisplaySettingsObject().isActive(channel)) {
+            if (!display_.getDisplaySettingsObject().getSnapshot().isActive(channel)) {
                continue;
             }
 
-            int imagePixelWidth = (int) (viewCoords.getFullResSourceDataSize().x / viewCoords.getDownsampleFactor());
-            int imagePixelHeight = (int) (viewCoords.getFullResSourceDataSize().y / viewCoords.getDownsampleFactor());
-            long viewOffsetAtResX = (long) (viewCoords.getViewOffset().x / viewCoords.getDownsampleFactor());
-            long viewOffsetAtResY = (long) (viewCoords.getViewOffset().y / viewCoords.getDownsampleFactor());
-
-            HashMap<String, Object> axes = new HashMap<String, Object>(viewCoords.getAxesPositions());
-            // axes contains a single position for channel, reflecting where the scrollbar is set. But we
-            // actually want to display all channels at once, so replace this with the one we are currently adding
-            // UNLESS the one we are currently adding is actually a dummy channel name because there are no channels
-            if (!channel.equals(NDViewer.NO_CHANNEL)) {
-               axes.put(NDViewer.CHANNEL_AXIS, channel);
-            } else {
-               axes.remove(NDViewer.CHANNEL_AXIS);
+            NDVImageProcessor processor = channelProcessors_.get(channel);
+            TaggedImage alreadyFetched = fetchedImages_.get(channel);
+            if (alreadyFetched != null) {
+               Future<TaggedImage> channelTask = submitChannelTask(processor, () -> {
+                  //recompute 8 bit image from the pixels already held
+                  processor.recompute();
+                  return alreadyFetched;
+               });
+               channelTasks.put(channel, channelTask);
+               synchronized (pendingFetches_) {
+                  pendingFetches_.add(channelTask);
+               }
+               continue;
             }
 
-            TaggedImage imageForDisplay = getDisplayImage(axes, viewCoords.getResolutionIndex(),
-                    viewOffsetAtResX, viewOffsetAtResY, imagePixelWidth, imagePixelHeight);
+            DisplayImageCache.Key cacheKey = requestFor(viewCoords, viewCoords.getAxesKey(), channel);
+            TaggedImage held = heldImages == null ? null : heldImages.get(channel);
+            if (held != null && !(processor instanceof NDVImageProcessorRGB)
+                    && (held.pix instanceof short[] || held.pix instanceof byte[])
+                    && !imageCache_.contains(cacheKey)) {
+               // Read only the strips that panning exposed
+               List<Future<TaggedImage>> stripFetches = new ArrayList<Future<TaggedImage>>();
+               for (int[] strip : pan.strips) {
+                  stripFetches.add(data_.getImageForDisplayAsync(cacheKey.getAxes(), cacheKey.getResolutionIndex(),
+                          cacheKey.getXOffset() + strip[0], cacheKey.getYOffset() + strip[1],
+                          strip[2], strip[3], FETCH_EXECUTOR));
+               }
+               renderNeedsIO = true;
+               final PanShift shift = pan;
+               final int width = imageWidth_;
+               final int height = imageHeight_;
+               Future<TaggedImage> channelTask = submitChannelTask(processor, () -> {
+                  Object shifted = processor.nextPanBuffer(held.pix);
+                  shift.shift(held.pix, shifted);
+                  for (int i = 0; i < stripFetches.size(); i++) {
+                     TaggedImage strip = stripFetches.get(i).get();
+                     shift.paste(strip == null ? null : strip.pix, shift.strips.get(i), shifted);
+                  }
+                  processor.changePixels(shifted, width, height);
+                  processor.recompute();
+                  return new TaggedImage(shifted, held.tags);
+               });
+               channelTasks.put(channel, channelTask);
+               synchronized (pendingFetches_) {
+                  pendingFetches_.addAll(stripFetches);
+                  pendingFetches_.add(channelTask);
+               }
+               pannedChannels.add(channel);
+               continue;
+            }
+            TaggedImage cachedImage = imageCache_.get(cacheKey);
+            HistogramCache.Counts cachedHistogram = histogramCache_.get(cacheKey);
+            // Taken before reading, so a histogram of pixels invalidated meanwhile isn't stored
+            long histogramStamp = histogramCache_.getStamp();
+            Object fetchToken = null;
+            Future<TaggedImage> fetch = null;
+            if (cachedImage == null) {
+               fetchToken = imageCache_.beginFetch(cacheKey);
+               fetch = data_.getImageForDisplayAsync(cacheKey.getAxes(), cacheKey.getResolutionIndex(),
+                       cacheKey.getXOffset(), cacheKey.getYOffset(), cacheKey.getWidth(), cacheKey.getHeight(),
+                       FETCH_EXECUTOR);
+               renderNeedsIO = true;
+            }
+            final Future<TaggedImage> pendingFetch = fetch;
+            final Object token = fetchToken;
+            final int width = imageWidth_;
+            final int height = imageHeight_;
+            Future<TaggedImage> channelTask = submitChannelTask(processor, () -> {
+               TaggedImage imageForDisplay;
+               if (cachedImage != null) {
+                  imageForDisplay = cachedImage;
+               } else {
+                  imageForDisplay = pendingFetch.get();
+                  imageCache_.put(cacheKey, token, imageForDisplay);
+               }
+               processor.changePixels(imageForDisplay.pix, width, height);
+               processor.pixelsKey = cacheKey;
+               processor.pixelsStamp = histogramStamp;
+               processor.setKnownHistogram(cachedHistogram);
+               //recompute 8 bit image
+               processor.recompute();
+               if (cachedHistogram == null && processor.histogramCounted && processor.pixels != null) {
+                  histogramCache_.put(cacheKey, histogramStamp, processor.histogram);
+               }
+               return imageForDisplay;
+            });
+            channelTasks.put(channel, channelTask);
+            synchronized (pendingFetches_) {
+               if (fetch != null) {
+                  pendingFetches_.add(fetch);
+               }
+               pendingFetches_.add(channelTask);
+            }
+         }
 
-            if (latestTags_ == null ||
-                    (viewCoords.getAxesPositions().containsKey(NDViewer.CHANNEL_AXIS)  &&
-                            viewCoords.getAxesPositions().get(NDViewer.CHANNEL_AXIS).equals(channel))) {
-               latestTags_ = imageForDisplay.tags;
+         if (renderNeedsIO) {
+            // Keep speculative reads out of the way while the user waits for these
+            prefetcher_.beginRenderFetch();
+         }
+         boolean completed = false;
+         try {
+            for (String channel : channelTasks.keySet()) {
+               TaggedImage imageForDisplay = channelTasks.get(channel).get();
+               if (latestTags_ == null ||
+                       channel.equals(viewCoords.getAxesKey().get(NDViewer.CHANNEL_AXIS))) {
+                  latestTags_ = imageForDisplay.tags;
+               }
+               fetchedImages_.put(channel, imageForDisplay);
+               processedChannels.add(channel);
+            }
+            fetchedView_ = viewCoords;
+            completed = true;
+         } catch (CancellationException | InterruptedException e) {
+            // A newer view made this frame obsolete
+            lastFrameCancelled_ = true;
+            return null;
+         } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException
+                    || e.getCause() instanceof InterruptedException) {
+               lastFrameCancelled_ = true;
+               return null;
+            }
+            throw e;
+         } finally {
+            pendingView_ = null;
+            cancelPendingFetches();
+            if (renderNeedsIO) {
+               prefetcher_.endRenderFetch();
+            }
+            if (!completed) {
+               // Some processors may have been left with pixels from this frame
+               fetchedImages_.clear();
+               fetchedView_ = null;
             }
-            channelProcessors_.get(channel).changePixels(imageForDisplay.pix, imageWidth_, imageHeight_);
          }
+         lastFrameCancelled_ = false;
       }
 
-         boolean firstActive = true;
-         Arrays.fill(rgbPixels_, 0);
-         int redValue, greenValue, blueValue;
-         for (String c : channelProcessors_.keySet()) {
-            if (!display_.getDisplaySettingsObject().isActive(c)) {
-               continue;
+         // Composite the channels that were fetched and converted for this frame
+         List<ChannelCompositor.Layer> layers = new ArrayList<ChannelCompositor.Layer>();
+         for (String c : processedChannels) {
+            NDVImageProcessor processor = channelProcessors_.get(c);
+            if (processor instanceof NDVImageProcessorRGB) {
+               NDVImageProcessorRGB rgbProcessor = (NDVImageProcessorRGB) processor;
+               layers.add(new ChannelCompositor.Layer(
+                       rgbProcessor.rProcessor_.eightBitImage, rgbProcessor.rProcessor_.reds,
+                       rgbProcessor.gProcessor_.eightBitImage, rgbProcessor.gProcessor_.greens,
+                       rgbProcessor.bProcessor_.eightBitImage, rgbProcessor.bProcessor_.blues));
+            } else if (processor.renderedWithPackedLUT) {
+               layers.add(new ChannelCompositor.Layer(processor.pixels, processor.packedLUT));
+            } else {
+               layers.add(new ChannelCompositor.Layer(processor.eightBitImage,
+                       processor.reds, processor.greens, processor.blues));
             }
-            String channelName = c;
-            if (display_.getDisplaySettingsObject().isActive(channelName)) {
-               //get the appropriate pixels from the data view
-
-               //recompute 8 bit image
-               channelProcessors_.get(c).recompute();
-               if (firstActive) {
-                  if (channelProcessors_.get(c) instanceof NDVImageProcessorRGB) {
-                     byte[] bytesR = ((NDVImageProcessorRGB) channelProcessors_.get(c)).rProcessor_.eightBitImage;
-                     byte[] bytesG = ((NDVImageProcessorRGB) channelProcessors_.get(c)).gProcessor_.eightBitImage;
-                     byte[] bytesB = ((NDVImageProcessorRGB) channelProcessors_.get(c)).bProcessor_.eightBitImage;
-                     for (int p = 0; p < imageWidth_ * imageHeight_; p++) {
-                        redValue = ((NDVImageProcessorRGB) channelProcessors_.get(c)).rProcessor_.reds[bytesR[p] & 0xff];
-                        greenValue = ((NDVImageProcessorRGB) channelProcessors_.get(c)).gProcessor_.greens[bytesG[p] & 0xff];
-                        blueValue = ((NDVImageProcessorRGB) channelProcessors_.get(c)).bProcessor_.blues[bytesB[p] & 0xff];
-                        rgbPixels_[p] = redValue | greenValue | blueValue;
-                     }
-                  } else {
-                     byte[] bytes = channelProcessors_.get(c).eightBitImage;
-                     for (int p = 0; p < imageWidth_ * imageHeight_; p++) {
-                        redValue = channelProcessors_.get(c).reds[bytes[p] & 0xff];
-                        greenValue = channelProcessors_.get(c).greens[bytes[p] & 0xff];
-                        blueValue = channelProcessors_.get(c).blues[bytes[p] & 0xff];
-                        rgbPixels_[p] = redValue | greenValue | blueValue;
-                     }
-                  }
-                  firstActive = false;
-               } else {
-                  //add subsequent channels onto the first one
-                  int pixel;
-                  if (channelProcessors_.get(c) instanceof NDVImageProcessorRGB) {
-                     byte[] bytesR = ((NDVImageProcessorRGB) channelProcessors_.get(c)).rProcessor_.eightBitImage;
-                     byte[] bytesG = ((NDVImageProcessorRGB) channelProcessors_.get(c)).gProcessor_.eightBitImage;
-                     byte[] bytesB = ((NDVImageProcessorRGB) channelProcessors_.get(c)).bProcessor_.eightBitImage;
-                     for (int p = 0; p < imageWidth_ * imageHeight_; p++) {
-                        pixel = rgbPixels_[p];
-                        redValue = (pixel & 0x00ff0000) + ((NDVImageProcessorRGB) channelProcessors_.get(c)).rProcessor_.reds[bytesR[p] & 0xff];
-                        greenValue = (pixel & 0x0000ff00) + ((NDVImageProcessorRGB) channelProcessors_.get(c)).gProcessor_.greens[bytesG[p] & 0xff];
-                        blueValue = (pixel & 0x000000ff) + ((NDVImageProcessorRGB) channelProcessors_.get(c)).bProcessor_.blues[bytesB[p] & 0xff];
-
-                        if (redValue > 16711680) {
-                           redValue = 16711680;
-                        }
-                        if (greenValue > 65280) {
-                           greenValue = 65280;
-                        }
-                        if (blueValue > 255) {
-                           blueValue = 255;
-                        }
-                        rgbPixels_[p] = redValue | greenValue | blueValue;
-                     }
-                  } else {
-                     byte[] bytes = channelProcessors_.get(c).eightBitImage;
-                     for (int p = 0; p < imageWidth_ * imageHeight_; p++) {
-                        pixel = rgbPixels_[p];
-                        redValue = (pixel & 0x00ff0000) + channelProcessors_.get(c).reds[bytes[p] & 0xff];
-                        greenValue = (pixel & 0x0000ff00) + channelProcessors_.get(c).greens[bytes[p] & 0xff];
-                        blueValue = (pixel & 0x000000ff) + channelProcessors_.get(c).blues[bytes[p] & 0xff];
-
-                        if (redValue > 16711680) {
-                           redValue = 16711680;
-                        }
-                        if (greenValue > 65280) {
-                           greenValue = 65280;
-                        }
-                        if (blueValue > 255) {
-                           blueValue = 255;
-                        }
-                        rgbPixels_[p] = redValue | greenValue | blueValue;
-                     }
-                  }
+         }
+         // If every channel was panned with unchanged lookup tables, what is already composited
+         // can be shifted too, and only the exposed strips need blending
+         boolean blit = pan != null && imageSource_ != null
+                 && processedChannels.equals(compositedChannels_)
+                 && pannedChannels.containsAll(processedChannels);
+         for (String c : processedChannels) {
+            NDVImageProcessor processor = channelProcessors_.get(c);
+            if (!processor.renderedWithPackedLUT || processor.lutRebuilt) {
+               blit = false;
+            }
+         }
+         if (blit) {
+            pan.shift(rgbPixels_, rgbPixels_);
+            for (int[] strip : pan.strips) {
+               compositor_.composite(layers, rgbPixels_, imageWidth_, strip[0], strip[1],
+                       strip[0] + strip[2], strip[1] + strip[3]);
+            }
+         } else {
+            // Tiles can only be cached when they are made from raw pixels with packed lookup
+            // tables, otherwise the lookup tables don't capture the whole mapping
+            List<Object> frame = new ArrayList<Object>();
+            frame.add(nonChannelAxes(viewCoords));
+            frame.add(viewCoords.getResolutionIndex());
+            for (String c : processedChannels) {
+               NDVImageProcessor processor = channelProcessors_.get(c);
+               if (!processor.renderedWithPackedLUT) {
+                  frame = null;
+                  break;
                }
+               frame.add(c);
+               frame.add(processor.lutGeneration);
             }
-
+            double downsample = viewCoords.getDownsampleFactor();
+            tileGrid_.render(compositor_, layers, frame, rgbPixels_,
+                    (long) (viewCoords.getViewOffsetX() / downsample),
+                    (long) (viewCoords.getViewOffsetY() / downsample), imageWidth_, imageHeight_);
          }
-
+         compositedChannels_ = processedChannels;
 
       if (imageSource_ == null || remakeDisplayImage) {
          imageSource_ = new MemoryImageSource(imageWidth_, imageHeight_, rgbCM_, rgbPixels_, 0, imageWidth_);
@@ -275,17 +712,55 @@ public class ImageMaker {
       return new LUT(8, size, rs, gs, bs);
    }
 
-   public HashMap<String, int[]> getHistograms() {
-      HashMap<String, int[]> hists = new HashMap<String, int[]>();
+   /**
+    * @return what the histogram panels show for the channels in the last
+    * frame. Unlike the histograms themselves, these aren't reused for later
+    * frames, so they can be handed to the event dispatch thread
+    */
+   public HashMap<String, DisplayHistogram> getHistograms() {
+      HashMap<String, DisplayHistogram> hists = new HashMap<String, DisplayHistogram>();
       for (String channel : channelProcessors_.keySet()) {
-         hists.put(channel, channelProcessors_.get(channel).rawHistogram);
+         ChannelHistogram histogram = channelProcessors_.get(channel).shownHistogram;
+         hists.put(channel, histogram == null ? null : histogram.getDisplayHistogram());
       }
       return hists;
    }
 
+   /**
+    * Count the histograms that were left out of the last frame because they
+    * weren't needed to render it. Meant to be called after the frame is
+    * shown, on a thread that doesn't hold up rendering.
+    *
+    * @return histograms of all channels as in {@link #getHistograms}, or null
+    * if there was nothing to count
+    */
+   public HashMap<String, DisplayHistogram> computeDeferredHistograms() {
+      boolean counted = false;
+      for (NDVImageProcessor processor : channelProcessors_.values()) {
+         counted |= processor.countDeferredHistogram();
+      }
+      return counted ? getHistograms() : null;
+   }
+
+   /**
+    * Count histograms from a sample of the pixels of large images rather
+    * than from every pixel.
+    *
+    * @param accuracy target error of percentiles (and thus autoscaled
+    *                 contrast), as a fraction of all pixels. 0 to count every
+    *                 pixel
+    * @param sampling how to choose the pixels to count
+    */
+   public void setHistogramAccuracy(double accuracy, ChannelHistogram.Sampling sampling) {
+      histogramSamples_ = ChannelHistogram.samplesForAccuracy(accuracy);
+      histogramSampling_ = sampling;
+   }
+
    private class NDVImageProcessorRGB extends NDVImageProcessor {
 
       private NDVImageProcessor rProcessor_, bProcessor_, gProcessor_;
+      // Deinterleaved color planes, reused between frames
+      private byte[] rPix_, gPix_, bPix_;
 
       public NDVImageProcessorRGB(int w, int h, String name) {
          super(w, h, name);
@@ -295,105 +770,92 @@ public class ImageMaker {
       }
 
       public void changePixels(Object pix, int w, int h) {
-         byte[] rPix = new byte[w * h];
-         byte[] gPix = new byte[w * h];
-         byte[] bPix = new byte[w * h];
-         for (int i = 0; i < w * h; i++) {
-            bPix[i] = ((byte[]) pix)[4 * i ];
-            gPix[i] = ((byte[]) pix)[4 * i + 1];
-            rPix[i] = ((byte[]) pix)[4 * i + 2];
+         int size = w * h;
+         if (rPix_ == null || rPix_.length != size) {
+            rPix_ = new byte[size];
+            gPix_ = new byte[size];
+            bPix_ = new byte[size];
+         }
+         byte[] bgra = (byte[]) pix;
+         byte[] rPix = rPix_;
+         byte[] gPix = gPix_;
+         byte[] bPix = bPix_;
+         for (int i = 0; i < size; i++) {
+            bPix[i] = bgra[4 * i];
+            gPix[i] = bgra[4 * i + 1];
+            rPix[i] = bgra[4 * i + 2];
          }
 
          rProcessor_.changePixels(rPix, w, h);
          gProcessor_.changePixels(gPix, w, h);
          bProcessor_.changePixels(bPix, w, h);
+         width = w;
+         height = h;
       }
 
       public void recompute() {
-            contrastMin_ = display_.getDisplaySettingsObject().getContrastMin(channelName_);
-            contrastMax_ = display_.getDisplaySettingsObject().getContrastMax(channelName_);
+            DisplaySettings settings = display_.getDisplaySettingsObject();
+            DisplaySettings.Snapshot ds = settings.getSnapshot();
+            contrastMin_ = ds.getContrastMin(channelName_);
+            contrastMax_ = ds.getContrastMax(channelName_);
+            rProcessor_.resetHistogram();
+            gProcessor_.resetHistogram();
+            bProcessor_.resetHistogram();
+            rProcessor_.countHistogram();
+            gProcessor_.countHistogram();
+            bProcessor_.countHistogram();
+            //Merge the histograms of R, G, and B
+            histogram = nextHistogram(rProcessor_.histogram.getNumBins());
+            histogram.setSum(rProcessor_.histogram, gProcessor_.histogram, bProcessor_.histogram);
+            processHistogram(ds);
+            histogramCounted = true;
+            deferredHistogram_.set(null);
+            shownHistogram = histogram;
+
+            if (ds.getAutoscale()) {
+               if (ds.ignoreFractionOn()) {
+                  contrastMax_ = maxAfterRejectingOutliers_;
+                  contrastMin_ = minAfterRejectingOutliers_;
+               } else {
+                  contrastMin_ = pixelMin_;
+                  contrastMax_ = pixelMax_;
+               }
+               settings.setContrastMin(channelName_, contrastMin_);
+               settings.setContrastMax(channelName_, contrastMax_);
+            }
             rProcessor_.contrastMin_ = contrastMin_;
             rProcessor_.contrastMax_ = contrastMax_;
             gProcessor_.contrastMin_ = contrastMin_;
             gProcessor_.contrastMax_ = contrastMax_;
             bProcessor_.contrastMin_ = contrastMin_;
             bProcessor_.contrastMax_ = contrastMax_;
+            // The histogram is counted separately, so one pass with the final contrast suffices
             rProcessor_.create8BitImage();
             gProcessor_.create8BitImage();
             bProcessor_.create8BitImage();
-            rawHistogram = new int[rProcessor_.rawHistogram.length];
-            for (int i = 0; i < rawHistogram.length; i++) {
-               rawHistogram[i] += rProcessor_.rawHistogram[i];
-               rawHistogram[i] += gProcessor_.rawHistogram[i];
-               rawHistogram[i] += bProcessor_.rawHistogram[i];
-            }
-            processHistogram(rawHistogram);
+            double gamma = ds.getContrastGamma(channelName_);
+            rProcessor_.updateLUT(Color.red, gamma);
+            gProcessor_.updateLUT(Color.green, gamma);
+            bProcessor_.updateLUT(Color.blue, gamma);
+      }
+   }
 
-            if (display_.getDisplaySettingsObject().getAutoscale()) {
-               if (display_.getDisplaySettingsObject().ignoreFractionOn()) {
-                  contrastMax_ = maxAfterRejectingOutliers_;
-                  contrastMin_ = minAfterRejectingOutliers_;
-               } else {
-                  contrastMin_ = pixelMin_;
-                  contrastMax_ = pixelMax_;
-               }
-               display_.getDisplaySettingsObject().setContrastMin(channelName_, contrastMin_);
-               display_.getDisplaySettingsObject().setContrastMax(channelName_, contrastMax_);
-               //need to redo this with autoscaled contrast now
-               rProcessor_.create8BitImage();
-               gProcessor_.create8BitImage();
-               bProcessor_.create8BitImage();
-               //Merge the histograms of R, G, and B
-               rawHistogram = new int[rProcessor_.rawHistogram.length];
-               for (int i = 0; i < rawHistogram.length; i++) {
-                  rawHistogram[i] += rProcessor_.rawHistogram[i];
-                  rawHistogram[i] += gProcessor_.rawHistogram[i];
-                  rawHistogram[i] += bProcessor_.rawHistogram[i];
-               }
-            }
-            rProcessor_.lut = makeLUT(Color.red, display_.getDisplaySettingsObject().getContrastGamma(channelName_));
-            gProcessor_.lut = makeLUT(Color.green, display_.getDisplaySettingsObject().getContrastGamma(channelName_));
-            bProcessor_.lut = makeLUT(Color.blue, display_.getDisplaySettingsObject().getContrastGamma(channelName_));
-         rProcessor_.splitLUTRGB();
-         gProcessor_.splitLUTRGB();
-         bProcessor_.splitLUTRGB();
-      }
-
-      private void processHistogram(int[] rawHistogram) {
-         //Compute stats
-         int totalPixels = 0;
-         for (int i = 0; i < rawHistogram.length; i++) {
-            totalPixels += rawHistogram[i];
-         }
-
-         pixelMin_ = -1;
-         pixelMax_ = 0;
-         int binSize = rawHistogram.length / 256;
-         int numBins = (int) Math.min(rawHistogram.length / binSize, DisplaySettings.NUM_DISPLAY_HIST_BINS);
-         for (int i = 0; i < numBins; i++) {
-            for (int j = 0; j < binSize; j++) {
-               int rawHistIndex = (int) (i * binSize + j);
-               int rawHistVal = rawHistogram[rawHistIndex];
-               if (rawHistVal > 0) {
-                  pixelMax_ = rawHistIndex;
-                  if (pixelMin_ == -1) {
-                     pixelMin_ = rawHistIndex;
-                  }
-               }
-            }
-         }
-         maxAfterRejectingOutliers_ = (int) totalPixels;
-         // specified percent of pixels are ignored in the automatic contrast setting
-         double percentToIgnore = 0.0;
-         try  {
-            percentToIgnore = display_.getDisplaySettingsObject().percentToIgnore();
-         } catch (Exception e) {
-            System.err.println(e);
-         }
-         HistogramUtils hu = new HistogramUtils(rawHistogram, totalPixels, 0.01 * percentToIgnore);
-         minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
-         maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
+   // Pixels whose histogram wasn't needed to render a frame
+   private static final class DeferredHistogram {
 
+      final Object pixels;
+      final int numPixels;
+      final int numBins;
+      final DisplayImageCache.Key key;
+      final long stamp;
+
+      DeferredHistogram(Object pixels, int numPixels, int numBins, DisplayImageCache.Key key,
+                        long stamp) {
+         this.pixels = pixels;
+         this.numPixels = numPixels;
+         this.numBins = numBins;
+         this.key = key;
+         this.stamp = stamp;
       }
    }
 
@@ -408,7 +870,41 @@ public class ImageMaker {
       int[] reds = null;
       int[] blues = null;
       int[] greens = null;
-      int[] rawHistogram = null;
+      ChannelHistogram histogram = null;
+      // Whether histogram was counted by the last recompute, rather than deferred
+      boolean histogramCounted = false;
+      // Most recent histogram that is up to date, handed out for display
+      volatile ChannelHistogram shownHistogram = null;
+      // Pixels to count once the frame is shown, if the histogram wasn't needed to render it
+      final AtomicReference<DeferredHistogram> deferredHistogram_ = new AtomicReference<DeferredHistogram>();
+      // Histograms counted on the deferred histogram thread, alternated like histogram
+      private final ChannelHistogram[] deferredBuffers_ = new ChannelHistogram[2];
+      // Incremented whenever a task is submitted for this processor, see submitChannelTask
+      final AtomicInteger taskGeneration = new AtomicInteger();
+      // Identifies pixels in the image and histogram caches, or null if they aren't from them
+      DisplayImageCache.Key pixelsKey = null;
+      // Histogram cache stamp from before the pixels were read
+      long pixelsStamp = 0;
+      // Histogram of the previous frame, which may still be being displayed. The two
+      // are alternated so that histograms don't need to be reallocated every frame
+      private ChannelHistogram spareHistogram_ = null;
+      // Map from every possible pixel value straight to a packed RGB value, used instead of
+      // eightBitImage when rendering with direct LUTs
+      int[] packedLUT = null;
+      boolean renderedWithPackedLUT = false;
+      // Histogram of the current pixels if already known, so it needn't be counted again
+      private HistogramCache.Counts knownHistogram_ = null;
+      // Settings that lut and packedLUT were last built with
+      private Color lutColor_ = null;
+      private double lutGamma_ = Double.NaN;
+      private int packedLUTMin_, packedLUTMax_;
+      // Whether the last recompute changed lut or packedLUT
+      boolean lutRebuilt = false;
+      // Changes whenever lut or packedLUT change, so rendered tiles can tell which they used.
+      // Unique across processors, since processors come and go with channels
+      long lutGeneration = LUT_GENERATIONS.incrementAndGet();
+      // Pixels shifted into place when panning, alternated so the held pixels can be the source
+      private final Object[] panBuffers_ = new Object[2];
       final String channelName_;
 
       public NDVImageProcessor(int w, int h, String name) {
@@ -419,72 +915,221 @@ public class ImageMaker {
 
       public void changePixels(Object pix, int w, int h) {
          pixels = pix;
-         rawHistogram = pixels instanceof short[] ? new int[65536] : new int[256];
+         pixelsKey = null;
+         knownHistogram_ = null;
          width = w;
          height = h;
-         eightBitImage = null;
+      }
+
+      /**
+       * @return a buffer of the same type and size as pix to shift pix into
+       */
+      Object nextPanBuffer(Object pix) {
+         int length = Array.getLength(pix);
+         int index = panBuffers_[0] == pix ? 1 : 0;
+         Object buffer = panBuffers_[index];
+         if (buffer == null || buffer.getClass() != pix.getClass() || Array.getLength(buffer) != length) {
+            buffer = pix instanceof short[] ? new short[length] : new byte[length];
+            panBuffers_[index] = buffer;
+         }
+         return buffer;
+      }
+
+      void setKnownHistogram(HistogramCache.Counts histogram) {
+         knownHistogram_ = histogram;
+      }
+
+      /**
+       * Start a fresh histogram for the current pixels
+       */
+      void resetHistogram() {
+         histogram = nextHistogram(pixels instanceof short[] ? 65536 : 256);
+      }
+
+      /**
+       * Swap to the spare histogram buffer and clear it, so the one handed out
+       * for the previous frame isn't modified while it is displayed
+       */
+      ChannelHistogram nextHistogram(int numBins) {
+         ChannelHistogram next = spareHistogram_;
+         spareHistogram_ = histogram;
+         if (next == null || next.getNumBins() != numBins) {
+            return new ChannelHistogram(numBins);
+         }
+         next.clear();
+         return next;
       }
 
       public void recompute() {
-         DisplaySettings ds = display_.getDisplaySettingsObject();
+         DisplaySettings settings = display_.getDisplaySettingsObject();
+         DisplaySettings.Snapshot ds = settings.getSnapshot();
          contrastMin_ = ds.getContrastMin(channelName_);
          contrastMax_ = ds.getContrastMax(channelName_);
-         create8BitImage();
-         processHistogram(rawHistogram);
-         if (ds.getAutoscale()) {
-            if (ds.ignoreFractionOn()) {
-               contrastMax_ = maxAfterRejectingOutliers_;
-               contrastMin_ = minAfterRejectingOutliers_;
-            } else {
-               contrastMin_ = pixelMin_;
-               contrastMax_ = pixelMax_;
+         lutRebuilt = false;
+         renderedWithPackedLUT = directLUTRendering_ && pixels != null;
+         int[] datasetRange = ds.getAutoscale() ? getDatasetContrastRange(ds) : null;
+         boolean autoscaleToPlane = ds.getAutoscale() && datasetRange == null;
+         histogramCounted = autoscaleToPlane || knownHistogram_ != null || pixels == null;
+         if (histogramCounted) {
+            // Needed now to autoscale, or cheap because it is already known
+            deferredHistogram_.set(null);
+            resetHistogram();
+            countHistogram();
+            processHistogram(ds);
+            shownHistogram = histogram;
+            if (autoscaleToPlane) {
+               if (ds.ignoreFractionOn()) {
+                  contrastMax_ = maxAfterRejectingOutliers_;
+                  contrastMin_ = minAfterRejectingOutliers_;
+               } else {
+                  contrastMin_ = pixelMin_;
+                  contrastMax_ = pixelMax_;
+               }
             }
-            ds.setContrastMin(channelName_, contrastMin_);
-            ds.setContrastMax(channelName_, contrastMax_);
-            //need to redo this with autoscaled contrast now
-            create8BitImage();
-            processHistogram(rawHistogram);
-         }
-         lut = makeLUT(display_.getDisplaySettingsObject().getColor(channelName_),
-                 display_.getDisplaySettingsObject().getContrastGamma(channelName_));
+         } else {
+            // Not needed to render, so leave it until the frame is shown
+            deferredHistogram_.set(new DeferredHistogram(pixels, width * height,
+                    pixels instanceof short[] ? 65536 : 256, pixelsKey, pixelsStamp));
+         }
+         if (datasetRange != null) {
+            contrastMin_ = datasetRange[0];
+            contrastMax_ = datasetRange[1];
+         }
+         if (ds.getAutoscale()) {
+            settings.setContrastMin(channelName_, contrastMin_);
+            settings.setContrastMax(channelName_, contrastMax_);
+         }
+         updateLUT(ds.getColor(channelName_), ds.getContrastGamma(channelName_));
+         if (renderedWithPackedLUT) {
+            updatePackedLUT();
+            return;
+         }
+         // Contrast is final by now, so one pass suffices
+         create8BitImage();
+      }
+
+      /**
+       * @return contrast limits from the statistics of the images in scope,
+       * or null to autoscale to this image alone
+       */
+      private int[] getDatasetContrastRange(DisplaySettings.Snapshot ds) {
+         NDViewer display = display_;
+         DatasetContrastStatistics statistics = display == null ? null : display.getContrastStatistics();
+         if (statistics == null) {
+            return null;
+         }
+         return statistics.getContrastRange(channelName_,
+                 ds.ignoreFractionOn() ? 0.01 * ds.percentToIgnore() : 0);
+      }
+
+      /**
+       * Count the histogram deferred by the last recompute, if any, on the
+       * calling thread.
+       *
+       * @return true if a new histogram is shown
+       */
+      boolean countDeferredHistogram() {
+         DeferredHistogram request = deferredHistogram_.get();
+         if (request == null) {
+            return false;
+         }
+         int index = deferredBuffers_[0] == shownHistogram ? 1 : 0;
+         ChannelHistogram counted = deferredBuffers_[index];
+         if (counted == null || counted.getNumBins() != request.numBins) {
+            counted = new ChannelHistogram(request.numBins);
+            deferredBuffers_[index] = counted;
+         } else {
+            counted.clear();
+         }
+         counted.count(request.pixels, request.numPixels, histogramSamples_, histogramSampling_);
+         counted.finish();
+         NDViewer display = display_;
+         if (display != null) {
+            DisplaySettings.Snapshot ds = display.getDisplaySettingsObject().getSnapshot();
+            counted.prepareDisplayBins(ChannelHistogram.displayBinSize(counted.getNumBins(),
+                    ds.getBitDepth(channelName_)), ds.isLogHistogram());
+         }
+         // If newer pixels arrived meanwhile, these may have been overwritten while counting
+         if (!deferredHistogram_.compareAndSet(request, null)) {
+            return false;
+         }
+         shownHistogram = counted;
+         if (request.key != null) {
+            histogramCache_.put(request.key, request.stamp, counted);
+         }
+         return true;
+      }
+
+      /**
+       * Rebuild the color lookup table only if color or gamma changed
+       */
+      private void updateLUT(Color color, double gamma) {
+         if (lut != null && color.equals(lutColor_) && gamma == lutGamma_) {
+            return;
+         }
+         lut = makeLUT(color, gamma);
          splitLUTRGB();
+         lutColor_ = color;
+         lutGamma_ = gamma;
+         packedLUT = null;
+         lutRebuilt = true;
+         lutGeneration = LUT_GENERATIONS.incrementAndGet();
       }
 
-      private void processHistogram(int[] rawHistogram) {
-         //Compute stats
-         int totalPixels = 0;
-         for (int i = 0; i < rawHistogram.length; i++) {
-            totalPixels += rawHistogram[i];
-         }
-
-         pixelMin_ = -1;
-         pixelMax_ = 0;
-         int binSize = rawHistogram.length / 256;
-         int numBins = (int) Math.min(rawHistogram.length / binSize, DisplaySettings.NUM_DISPLAY_HIST_BINS);
-         for (int i = 0; i < numBins; i++) {
-            for (int j = 0; j < binSize; j++) {
-               int rawHistIndex = (int) (i * binSize + j);
-               int rawHistVal = rawHistogram[rawHistIndex];
-               if (rawHistVal > 0) {
-                  pixelMax_ = rawHistIndex;
-                  if (pixelMin_ == -1) {
-                     pixelMin_ = rawHistIndex;
-                  }
-               }
+      /**
+       * Fold contrast min/max and the color lookup table into a single table
+       * indexed by raw pixel value. Only rebuilt when contrast, gamma, color or
+       * pixel type changed.
+       */
+      private void updatePackedLUT() {
+         int size = pixels instanceof short[] ? 65536 : 256;
+         if (packedLUT != null && packedLUT.length == size
+                 && packedLUTMin_ == contrastMin_ && packedLUTMax_ == contrastMax_) {
+            return;
+         }
+         if (packedLUT == null || packedLUT.length != size) {
+            packedLUT = new int[size];
+         }
+         int value;
+         double scale = 256.0 / (contrastMax_ - contrastMin_ + 1);
+         for (int pixVal = 0; pixVal < size; pixVal++) {
+            // Same mapping as create8BitImage
+            value = pixVal - contrastMin_;
+            if (value < 0) {
+               value = 0;
             }
+            value = (int) (value * scale + 0.5);
+            if (value > 255) {
+               value = 255;
+            }
+            packedLUT[pixVal] = reds[value] | greens[value] | blues[value];
          }
-         maxAfterRejectingOutliers_ = (int) totalPixels;
-         // specified percent of pixels are ignored in the automatic contrast setting
-         double percentToIgnore = 0.0;
-         try  {
-            percentToIgnore = display_.getDisplaySettingsObject().percentToIgnore();
-         } catch (Exception e) {
-            System.err.println(e);
+         packedLUTMin_ = contrastMin_;
+         packedLUTMax_ = contrastMax_;
+         lutRebuilt = true;
+         lutGeneration = LUT_GENERATIONS.incrementAndGet();
+      }
+
+      //Count pixels, or a sample of them, into the histogram unless it is already known
+      private void countHistogram() {
+         if (knownHistogram_ != null && knownHistogram_.getNumBins() == histogram.getNumBins()) {
+            knownHistogram_.copyTo(histogram);
+         } else if (pixels != null) {
+            histogram.count(pixels, width * height, histogramSamples_, histogramSampling_);
          }
-         HistogramUtils hu = new HistogramUtils(rawHistogram, totalPixels, 0.01 * percentToIgnore);
-         minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
-         maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
+      }
 
+      void processHistogram(DisplaySettings.Snapshot ds) {
+         histogram.finish();
+         // Done here rather than on the EDT, which may have many channels to show
+         histogram.prepareDisplayBins(ChannelHistogram.displayBinSize(histogram.getNumBins(),
+                 ds.getBitDepth(channelName_)), ds.isLogHistogram());
+         pixelMin_ = histogram.getPixelMin();
+         pixelMax_ = histogram.getPixelMax();
+         // specified percent of pixels are ignored in the automatic contrast setting
+         double fractionToIgnore = 0.01 * ds.percentToIgnore();
+         minAfterRejectingOutliers_ = histogram.getMinAfterRejectingOutliers(fractionToIgnore);
+         maxAfterRejectingOutliers_ = histogram.getMaxAfterRejectingOutliers(fractionToIgnore);
       }
 
       /**
@@ -514,27 +1159,47 @@ public class ImageMaker {
       }
 
       //Create grayscale image with LUT min and max applied, but no color mapping
-      //Also compute histogram in the process
       private void create8BitImage() {
          int size = width * height;
-         if (eightBitImage == null) {
+         if (eightBitImage == null || eightBitImage.length != size) {
             eightBitImage = new byte[size];
          }
          if (pixels == null) {
+            Arrays.fill(eightBitImage, (byte) 0);
             return;
          }
-         int value;
          double scale = 256.0 / (contrastMax_ - contrastMin_ + 1);
+         // Dispatch on pixel type once, so that each loop only deals with one array type
+         if (pixels instanceof short[]) {
+            create8BitImage((short[]) pixels, size, scale);
+         } else {
+            create8BitImage((byte[]) pixels, size, scale);
+         }
+      }
+
+      private void create8BitImage(short[] pix, int size, double scale) {
+         final int contrastMin = contrastMin_;
+         final byte[] out = eightBitImage;
          for (int i = 0; i < size; i++) {
-            if (pixels instanceof short[]) {
-               int pixVal = (((short[]) pixels)[i] & 0xffff);
-               value = pixVal - contrastMin_;
-               rawHistogram[pixVal]++;
-            } else {
-               int pixVal = (((byte[]) pixels)[i] & 0xff);
-               value = pixVal - contrastMin_;
-               rawHistogram[pixVal]++;
+            int pixVal = pix[i] & 0xffff;
+            int value = pixVal - contrastMin;
+            if (value < 0) {
+               value = 0;
             }
+            value = (int) (value * scale + 0.5);
+            if (value > 255) {
+               value = 255;
+            }
+            out[i] = (byte) value;
+         }
+      }
+
+      private void create8BitImage(byte[] pix, int size, double scale) {
+         final int contrastMin = contrastMin_;
+         final byte[] out = eightBitImage;
+         for (int i = 0; i < size; i++) {
+            int pixVal = pix[i] & 0xff;
+            int value = pixVal - contrastMin;
             if (value < 0) {
                value = 0;
             }
@@ -542,7 +1207,7 @@ public class ImageMaker {
             if (value > 255) {
                value = 255;
             }
-            eightBitImage[i] = (byte) value;
+            out[i] = (byte) value;
          }
       }
 
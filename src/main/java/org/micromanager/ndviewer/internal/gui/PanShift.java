@@ -0,0 +1,91 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Describes how the pixels of a frame move when the view is panned by a
+ * whole number of pixels at the current resolution level, and which strips
+ * along the edges are newly exposed and have to be read from the data source.
+ */
+class PanShift {
+
+   // Offset of the new frame relative to the old one, in pixels at the resolution level
+   final int dx, dy;
+   // Newly exposed regions of the new frame as {x, y, width, height}
+   final List<int[]> strips = new ArrayList<int[]>(2);
+   private final int width_, height_;
+
+   /**
+    * @param dx horizontal movement of the view, which must be smaller than
+    *           width in magnitude
+    * @param dy vertical movement of the view, which must be smaller than
+    *           height in magnitude
+    */
+   PanShift(int dx, int dy, int width, int height) {
+      this.dx = dx;
+      this.dy = dy;
+      width_ = width;
+      height_ = height;
+      if (dy != 0) {
+         strips.add(new int[]{0, dy > 0 ? height - dy : 0, width, Math.abs(dy)});
+      }
+      if (dx != 0) {
+         // Rows already covered by the horizontal strip are left out
+         strips.add(new int[]{dx > 0 ? width - dx : 0, Math.max(0, -dy),
+                 Math.abs(dx), height - Math.abs(dy)});
+      }
+   }
+
+   /**
+    * Copy the part of the old frame that is still visible to where it appears
+    * in the new frame. src and dst can be the same array.
+    *
+    * @param src pixels of the old frame
+    * @param dst pixels of the new frame, same type and size as src
+    */
+   void shift(Object src, Object dst) {
+      int width = width_;
+      int height = height_;
+      int rowStart = Math.max(0, -dy);
+      int rowEnd = Math.min(height, height - dy);
+      int dstCol = Math.max(0, -dx);
+      int srcCol = Math.max(0, dx);
+      int length = width - Math.abs(dx);
+      if (dy > 0 || src != dst) {
+         for (int row = rowStart; row < rowEnd; row++) {
+            System.arraycopy(src, (row + dy) * width + srcCol, dst, row * width + dstCol, length);
+         }
+      } else {
+         // Moving rows down within one array, so go bottom up to avoid overwriting sources
+         for (int row = rowEnd - 1; row >= rowStart; row--) {
+            System.arraycopy(src, (row + dy) * width + srcCol, dst, row * width + dstCol, length);
+         }
+      }
+   }
+
+   /**
+    * Copy the pixels read for an exposed strip into the new frame. If nothing
+    * could be read, the strip is left blank.
+    *
+    * @param stripPixels pixels of the strip, or null
+    * @param strip the strip, as {x, y, width, height}
+    * @param dst pixels of the new frame
+    */
+   void paste(Object stripPixels, int[] strip, Object dst) {
+      boolean usable = stripPixels != null && stripPixels.getClass() == dst.getClass()
+              && Array.getLength(stripPixels) >= strip[2] * strip[3];
+      for (int row = 0; row < strip[3]; row++) {
+         int dstIndex = (strip[1] + row) * width_ + strip[0];
+         if (usable) {
+            System.arraycopy(stripPixels, row * strip[2], dst, dstIndex, strip[2]);
+         } else if (dst instanceof short[]) {
+            Arrays.fill((short[]) dst, dstIndex, dstIndex + strip[2], (short) 0);
+         } else {
+            Arrays.fill((byte[]) dst, dstIndex, dstIndex + strip[2], (byte) 0);
+         }
+      }
+   }
+}
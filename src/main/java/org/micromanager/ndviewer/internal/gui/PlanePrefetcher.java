@@ -0,0 +1,229 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mmcorej.TaggedImage;
+import org.micromanager.ndviewer.api.NDViewerDataSource;
+import org.micromanager.ndviewer.main.NDViewer;
+
+/**
+ * Speculatively loads the planes ahead of the current one along the axis the
+ * user is scrolling through, so that they are already in the display image
+ * cache when the scrollbar gets there. How far ahead to look depends on how
+ * fast the user is scrolling. Prefetching always yields to fetches needed for
+ * the frame that is actually being rendered.
+ */
+public class PlanePrefetcher {
+
+   private static final int DEFAULT_MAX_PLANES_AHEAD = 8;
+   private static final int MIN_PLANES_AHEAD = 1;
+   // How far into the future (in ms) to stay ahead of the scrollbar
+   private static final double LOOKAHEAD_MS = 500;
+   // Scroll moves further apart than this are not considered one gesture
+   private static final long GESTURE_TIMEOUT_MS = 1000;
+
+   // Shared by the prefetchers of all viewers
+   private static final ExecutorService EXECUTOR =
+           ImageMaker.sharedPool(2, "Prefetch thread", Thread.MIN_PRIORITY);
+
+   private final ImageMaker imageMaker_;
+   private final DisplayImageCache cache_;
+   private final List<Future<?>> pending_ = new ArrayList<Future<?>>();
+   // Incremented whenever plans become outdated, so queued tasks can bail out
+   private final AtomicInteger generation_ = new AtomicInteger();
+   private final Object renderLock_ = new Object();
+   private int renderFetches_ = 0;
+
+   private volatile boolean enabled_ = true;
+   private volatile int maxPlanesAhead_ = DEFAULT_MAX_PLANES_AHEAD;
+
+   // Guarded by monitor on this
+   private HashMap<String, Object> lastAxes_;
+   private String lastAxis_;
+   private int lastDirection_;
+   private long lastMoveTime_;
+   private double planesPerSecond_;
+
+   PlanePrefetcher(ImageMaker imageMaker, DisplayImageCache cache) {
+      imageMaker_ = imageMaker;
+      cache_ = cache;
+   }
+
+   public void setEnabled(boolean enabled) {
+      enabled_ = enabled;
+      if (!enabled) {
+         cancel();
+      }
+   }
+
+   /**
+    * @param maxPlanesAhead upper limit on the number of planes prefetched
+    *                       ahead of the scrollbar
+    */
+   public void setMaxPlanesAhead(int maxPlanesAhead) {
+      maxPlanesAhead_ = Math.max(MIN_PLANES_AHEAD, maxPlanesAhead);
+   }
+
+   /**
+    * Called when the scrollbar positions change, to plan prefetches.
+    *
+    * @param view the view that will be displayed next
+    */
+   public synchronized void axesChanged(DataViewCoords view) {
+      if (!enabled_) {
+         return;
+      }
+      HashMap<String, Object> axes = new HashMap<String, Object>(view.getAxesPositions());
+      HashMap<String, Object> previous = lastAxes_;
+      lastAxes_ = axes;
+      String movedAxis = singleMovedAxis(previous, axes);
+      if (movedAxis == null) {
+         // Jumped or didn't move along a plane axis, nothing to predict
+         cancel();
+         lastAxis_ = null;
+         return;
+      }
+      int step = (Integer) axes.get(movedAxis) - (Integer) previous.get(movedAxis);
+      int direction = Integer.signum(step);
+      long now = System.currentTimeMillis();
+      long elapsed = now - lastMoveTime_;
+      lastMoveTime_ = now;
+      if (!movedAxis.equals(lastAxis_) || direction != lastDirection_
+              || elapsed > GESTURE_TIMEOUT_MS) {
+         planesPerSecond_ = 0;
+      } else {
+         // Smooth the estimate, scroll events arrive unevenly
+         double instantaneous = Math.abs(step) * 1000.0 / Math.max(1, elapsed);
+         planesPerSecond_ = planesPerSecond_ == 0 ? instantaneous
+                 : 0.5 * planesPerSecond_ + 0.5 * instantaneous;
+      }
+      lastAxis_ = movedAxis;
+      lastDirection_ = direction;
+
+      int planesAhead = (int) Math.ceil(planesPerSecond_ * LOOKAHEAD_MS / 1000.0);
+      planesAhead = Math.max(MIN_PLANES_AHEAD, Math.min(maxPlanesAhead_, planesAhead));
+      schedule(view, movedAxis, (Integer) axes.get(movedAxis), step, planesAhead);
+   }
+
+   private void schedule(DataViewCoords view, String axis, int position, int step,
+                         int planesAhead) {
+      cancel();
+      ChannelAxesIndex axesIndex = imageMaker_.getAxesIndex();
+      if (axesIndex == null) {
+         return;
+      }
+      Integer min = axesIndex.getAxisMin(axis);
+      Integer max = axesIndex.getAxisMax(axis);
+      if (min == null || max == null) {
+         return;
+      }
+      List<String> channels = imageMaker_.getActiveChannels();
+      DataViewCoords viewCopy = view.copy();
+      int generation = generation_.get();
+      // Nearest planes first
+      for (int i = 1; i <= planesAhead; i++) {
+         int target = position + i * step;
+         if (target < min || target > max) {
+            break;
+         }
+         AxesKey axes = viewCopy.getAxesKey().with(axis, target);
+         for (String channel : channels) {
+            DisplayImageCache.Key key = imageMaker_.requestFor(viewCopy, axes, channel);
+            if (cache_.contains(key)) {
+               continue;
+            }
+            pending_.add(EXECUTOR.submit(() -> prefetch(key, generation)));
+         }
+      }
+   }
+
+   private void prefetch(DisplayImageCache.Key key, int generation) {
+      try {
+         waitForRenderFetches();
+      } catch (InterruptedException e) {
+         return;
+      }
+      if (generation != generation_.get() || cache_.contains(key)) {
+         return;
+      }
+      NDViewerDataSource data = imageMaker_.getDataSource();
+      if (data == null) {
+         return;
+      }
+      Object token = cache_.beginFetch(key);
+      TaggedImage image = data.getImageForDisplay(key.getAxes(), key.getResolutionIndex(),
+              key.getXOffset(), key.getYOffset(), key.getWidth(), key.getHeight());
+      cache_.put(key, token, image);
+   }
+
+   /**
+    * Called when rendering a frame requires reading from the data source.
+    * Prefetches that haven't started wait until {@link #endRenderFetch}.
+    */
+   void beginRenderFetch() {
+      synchronized (renderLock_) {
+         renderFetches_++;
+      }
+   }
+
+   void endRenderFetch() {
+      synchronized (renderLock_) {
+         renderFetches_--;
+         renderLock_.notifyAll();
+      }
+   }
+
+   private void waitForRenderFetches() throws InterruptedException {
+      synchronized (renderLock_) {
+         while (renderFetches_ > 0) {
+            renderLock_.wait();
+         }
+      }
+   }
+
+   private synchronized void cancel() {
+      generation_.incrementAndGet();
+      for (Future<?> f : pending_) {
+         // Don't interrupt reads in progress, that can upset the data source
+         f.cancel(false);
+      }
+      pending_.clear();
+   }
+
+   void shutdown() {
+      // The pool is shared with other viewers, so only this viewer's tasks are cancelled
+      cancel();
+   }
+
+   /**
+    * @return the one integer axis (other than channel) that differs between
+    * the two positions, or null if there isn't exactly one
+    */
+   private static String singleMovedAxis(Map<String, Object> previous, Map<String, Object> current) {
+      if (previous == null || !previous.keySet().equals(current.keySet())) {
+         return null;
+      }
+      String moved = null;
+      for (String axis : current.keySet()) {
+         if (axis.equals(NDViewer.CHANNEL_AXIS)) {
+            continue;
+         }
+         Object a = previous.get(axis);
+         Object b = current.get(axis);
+         if (a == null ? b == null : a.equals(b)) {
+            continue;
+         }
+         if (moved != null || !(a instanceof Integer) || !(b instanceof Integer)) {
+            return null;
+         }
+         moved = axis;
+      }
+      return moved;
+   }
+}
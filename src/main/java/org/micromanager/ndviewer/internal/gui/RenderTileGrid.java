@@ -0,0 +1,188 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Splits the displayed region into fixed size tiles aligned to the pixel grid
+ * of its resolution level, and caches the composited RGB pixels of tiles.
+ * Because tiles are aligned to the data rather than to the view, a tile
+ * rendered once can be reused as long as the data and lookup tables that
+ * went into it are unchanged, however the view is panned or zoomed within
+ * the same resolution level. Cached tiles count against the
+ * {@link SharedCacheBudget}, so call {@link #release} once the grid is no
+ * longer used.
+ */
+class RenderTileGrid {
+
+   static final int TILE_SIZE = 256;
+   private static final int TILE_PIXELS = TILE_SIZE * TILE_SIZE;
+   private static final long TILE_BYTES = 4L * TILE_PIXELS;
+
+   private static final class TileKey {
+
+      private final Object frame_;
+      private final long col_, row_;
+      private final int hash_;
+
+      TileKey(Object frame, long col, long row) {
+         frame_ = frame;
+         col_ = col;
+         row_ = row;
+         hash_ = 31 * (31 * frame.hashCode() + Long.hashCode(col)) + Long.hashCode(row);
+      }
+
+      @Override
+      public int hashCode() {
+         return hash_;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof TileKey)) {
+            return false;
+         }
+         TileKey k = (TileKey) o;
+         return hash_ == k.hash_ && col_ == k.col_ && row_ == k.row_ && frame_.equals(k.frame_);
+      }
+   }
+
+   private static final class Tile {
+
+      final int[] pixels;
+      // When the tile was last used, by SharedCacheBudget.nextUse. Guarded by monitor on the grid
+      long lastUse = SharedCacheBudget.nextUse();
+
+      Tile(int[] pixels) {
+         this.pixels = pixels;
+      }
+   }
+
+   // Guarded by monitor on this
+   private final LinkedHashMap<TileKey, Tile> tiles_ = new LinkedHashMap<TileKey, Tile>(64, 0.75f, true);
+   private boolean released_ = false;
+   private final SharedCacheBudget.Member budgetMember_ = new SharedCacheBudget.Member() {
+      @Override
+      public long getOldestUse() {
+         synchronized (RenderTileGrid.this) {
+            Iterator<Tile> it = tiles_.values().iterator();
+            return it.hasNext() ? it.next().lastUse : Long.MAX_VALUE;
+         }
+      }
+
+      @Override
+      public boolean evictOldest() {
+         synchronized (RenderTileGrid.this) {
+            Iterator<Tile> it = tiles_.values().iterator();
+            if (!it.hasNext()) {
+               return false;
+            }
+            it.next();
+            it.remove();
+            SharedCacheBudget.addBytes(-TILE_BYTES);
+            return true;
+         }
+      }
+   };
+
+   RenderTileGrid() {
+      SharedCacheBudget.register(budgetMember_);
+   }
+
+   /**
+    * Composite a region into an RGB buffer tile by tile, in parallel. Tiles
+    * that lie entirely within the region are taken from the cache if
+    * possible, and otherwise cached after being composited when cacheable.
+    *
+    * @param compositor compositor whose threads to use
+    * @param layers channels to blend
+    * @param frame identifies the data and lookup tables that went into the
+    *              layers, so that equal frames give equal pixels. Null if the
+    *              result can't be cached
+    * @param rgbPixels output buffer of width * height packed RGB values
+    * @param originX x of the top left of the region on the pixel grid of the
+    *                resolution level
+    * @param originY y of the top left of the region
+    * @param width width of the region
+    * @param height height of the region
+    */
+   void render(ChannelCompositor compositor, List<ChannelCompositor.Layer> layers, Object frame,
+               int[] rgbPixels, long originX, long originY, int width, int height) {
+      if (width <= 0 || height <= 0) {
+         return;
+      }
+      ChannelCompositor.Layer[] layerArray = layers.toArray(new ChannelCompositor.Layer[0]);
+      long firstCol = Math.floorDiv(originX, TILE_SIZE);
+      long firstRow = Math.floorDiv(originY, TILE_SIZE);
+      int numCols = (int) (Math.floorDiv(originX + width - 1, TILE_SIZE) - firstCol + 1);
+      int numRows = (int) (Math.floorDiv(originY + height - 1, TILE_SIZE) - firstRow + 1);
+      compositor.forEachIndex(numCols * numRows, index -> {
+         long col = firstCol + index % numCols;
+         long row = firstRow + index / numCols;
+         // Part of the tile inside the region, in the coordinates of the region
+         int x0 = (int) Math.max(0, col * TILE_SIZE - originX);
+         int y0 = (int) Math.max(0, row * TILE_SIZE - originY);
+         int x1 = (int) Math.min(width, (col + 1) * TILE_SIZE - originX);
+         int y1 = (int) Math.min(height, (row + 1) * TILE_SIZE - originY);
+         boolean wholeTile = x1 - x0 == TILE_SIZE && y1 - y0 == TILE_SIZE;
+         if (frame == null || !wholeTile) {
+            ChannelCompositor.compositeRows(layerArray, rgbPixels, width, x0, x1, y0, y1);
+            return;
+         }
+         TileKey key = new TileKey(frame, col, row);
+         int[] cached = get(key);
+         if (cached != null) {
+            for (int y = 0; y < TILE_SIZE; y++) {
+               System.arraycopy(cached, y * TILE_SIZE, rgbPixels, (y0 + y) * width + x0, TILE_SIZE);
+            }
+            return;
+         }
+         ChannelCompositor.compositeRows(layerArray, rgbPixels, width, x0, x1, y0, y1);
+         // Evicted tiles aren't recycled, another thread may still be copying from them
+         int[] tile = new int[TILE_PIXELS];
+         for (int y = 0; y < TILE_SIZE; y++) {
+            System.arraycopy(rgbPixels, (y0 + y) * width + x0, tile, y * TILE_SIZE, TILE_SIZE);
+         }
+         put(key, tile);
+      });
+   }
+
+   private synchronized int[] get(TileKey key) {
+      Tile tile = tiles_.get(key);
+      if (tile == null) {
+         return null;
+      }
+      tile.lastUse = SharedCacheBudget.nextUse();
+      return tile.pixels;
+   }
+
+   private void put(TileKey key, int[] pixels) {
+      synchronized (this) {
+         if (released_ || tiles_.put(key, new Tile(pixels)) != null) {
+            return;
+         }
+         SharedCacheBudget.addBytes(TILE_BYTES);
+      }
+      SharedCacheBudget.trim();
+   }
+
+   /**
+    * Forget all tiles, e.g. because the underlying data changed
+    */
+   synchronized void clear() {
+      SharedCacheBudget.addBytes(-TILE_BYTES * tiles_.size());
+      tiles_.clear();
+   }
+
+   /**
+    * Forget all tiles and stop counting the grid against the shared budget
+    */
+   void release() {
+      synchronized (this) {
+         released_ = true;
+         clear();
+      }
+      SharedCacheBudget.unregister(budgetMember_);
+   }
+}
@@ -0,0 +1,111 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory budget shared by the caches of all viewers in the process, so that
+ * opening more viewers doesn't multiply the memory taken by cached images,
+ * composited tiles and histograms. When the caches are over it, the least
+ * recently used entries of all of them are evicted first.
+ */
+final class SharedCacheBudget {
+
+   /**
+    * A cache that counts against the budget. Entries are stamped with
+    * {@link #nextUse} whenever they are used, so that they can be compared
+    * across caches.
+    */
+   interface Member {
+
+      /**
+       * @return when the least recently used entry was last used, or
+       * Long.MAX_VALUE if the cache is empty
+       */
+      long getOldestUse();
+
+      /**
+       * Evict the least recently used entry, and subtract its size with
+       * {@link #addBytes}.
+       *
+       * @return false if the cache was empty
+       */
+      boolean evictOldest();
+   }
+
+   // Eviction across caches is done under LOCK, which is always taken before the
+   // monitor of any member
+   private static final Object LOCK = new Object();
+   private static final CopyOnWriteArrayList<Member> MEMBERS = new CopyOnWriteArrayList<Member>();
+   private static final AtomicLong BYTES = new AtomicLong();
+   private static final AtomicLong USE_CLOCK = new AtomicLong();
+   private static volatile long maxBytes_ =
+           Math.min(512L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+
+   private SharedCacheBudget() {
+   }
+
+   static void register(Member member) {
+      MEMBERS.add(member);
+   }
+
+   /**
+    * Stop evicting from a cache. Its entries must have been subtracted first
+    */
+   static void unregister(Member member) {
+      MEMBERS.remove(member);
+   }
+
+   /**
+    * @return stamp for an entry that is being used, later than all before it
+    */
+   static long nextUse() {
+      return USE_CLOCK.incrementAndGet();
+   }
+
+   /**
+    * Count entries that were added to a cache, or subtract removed ones
+    */
+   static void addBytes(long bytes) {
+      BYTES.addAndGet(bytes);
+   }
+
+   static long getMaxBytes() {
+      return maxBytes_;
+   }
+
+   static void setMaxBytes(long maxBytes) {
+      maxBytes_ = maxBytes;
+      trim();
+   }
+
+   static long getSizeInBytes() {
+      return BYTES.get();
+   }
+
+   /**
+    * Evict the least recently used entries across all caches until they are
+    * within the budget. Must not be called with the monitor of a member held.
+    */
+   static void trim() {
+      if (BYTES.get() <= maxBytes_) {
+         return;
+      }
+      synchronized (LOCK) {
+         while (BYTES.get() > maxBytes_) {
+            Member leastRecent = null;
+            long leastRecentUse = Long.MAX_VALUE;
+            for (Member member : MEMBERS) {
+               long use = member.getOldestUse();
+               if (use < leastRecentUse) {
+                  leastRecent = member;
+                  leastRecentUse = use;
+               }
+            }
+            if (leastRecent == null || !leastRecent.evictOldest()) {
+               return;
+            }
+         }
+      }
+   }
+}
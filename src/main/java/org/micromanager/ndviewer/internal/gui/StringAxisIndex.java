@@ -0,0 +1,76 @@
+package org.micromanager.ndviewer.internal.gui;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The values seen along a string valued axis (e.g. channel names or well
+ * positions), in order of arrival, and the integer position of each on the
+ * scrollbars. Both directions of the lookup take constant time. Values are
+ * only ever appended, and can be read from any thread without locking.
+ */
+class StringAxisIndex {
+
+   private final ConcurrentHashMap<String, Integer> positions_ = new ConcurrentHashMap<String, Integer>();
+   // Replaced by a larger copy when full, under the monitor on this. Entries below
+   // size_ never change
+   private volatile String[] values_ = new String[8];
+   private volatile int size_ = 0;
+
+   /**
+    * @return true if the value is new
+    */
+   synchronized boolean add(String value) {
+      if (positions_.containsKey(value)) {
+         return false;
+      }
+      int size = size_;
+      String[] values = values_;
+      if (size == values.length) {
+         values = Arrays.copyOf(values, 2 * size);
+      }
+      values[size] = value;
+      values_ = values;
+      positions_.put(value, size);
+      // Publish the value last, so readers that see the new size can read it
+      size_ = size + 1;
+      return true;
+   }
+
+   /**
+    * @return integer position of the value, or -1 if it hasn't been seen
+    */
+   int indexOf(String value) {
+      Integer position = positions_.get(value);
+      return position == null ? -1 : position;
+   }
+
+   boolean contains(String value) {
+      return positions_.containsKey(value);
+   }
+
+   /**
+    * @return the value at an integer position
+    */
+   String get(int position) {
+      // Read the size before the values, see add
+      if (position < 0 || position >= size_) {
+         throw new IndexOutOfBoundsException("Position: " + position + ", Size: " + size_);
+      }
+      return values_[position];
+   }
+
+   int size() {
+      return size_;
+   }
+
+   /**
+    * @return the values seen so far, in order
+    */
+   List<String> getValues() {
+      int size = size_;
+      return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(values_, size)));
+   }
+}
@@ -56,7 +56,9 @@ class ChannelControlPanel extends JPanel implements CursorListener {
    private Color color_;
    private ContrastPanel contrastPanel_;
    private final String channelName_;
-   private int pixelMin_, pixelMax_;
+   private int pixelMin_ = -1, pixelMax_ = -1;
+   // Reused for every frame
+   private final GraphData histogramData_ = new GraphData();
 
    public ChannelControlPanel(NDViewer disp,
            ContrastPanel contrastPanel, String name, Color color, int bitDepth) {
@@ -290,39 +292,20 @@ class ChannelControlPanel extends JPanel implements CursorListener {
       return hp;
    }
 
-   public void updateHistogram(int[] rawHistogram) {
+   public void updateHistogram(DisplayHistogram histogram) {
       hp_.setVisible(true);
-      //Draw histogram and stats
-      GraphData histogramData = new GraphData();
-      // Convert from full histogram to display histogram
-      pixelMin_ = -1;
-      pixelMax_ = 0;
-      int binSize = rawHistogram.length == 256 ? 1 : (int) (Math.pow(2, bitDepth_ - 8));
-      int numBins = (int) Math.min(rawHistogram.length / binSize, DisplaySettings.NUM_DISPLAY_HIST_BINS);
-      int[] displayHistogram_ = new int[DisplaySettings.NUM_DISPLAY_HIST_BINS];
-      for (int i = 0; i < numBins; i++) {
-         displayHistogram_[i] = 0;
-         for (int j = 0; j < binSize; j++) {
-            int rawHistIndex = (int) (i * binSize + j);
-            int rawHistVal = rawHistogram[rawHistIndex];
-            displayHistogram_[i] += rawHistVal;
-            if (rawHistVal > 0) {
-               pixelMax_ = rawHistIndex;
-               if (pixelMin_ == -1) {
-                  pixelMin_ = rawHistIndex;
-               }
-            }
-         }
-         if (display_.getDisplaySettingsObject().isLogHistogram()) {
-            displayHistogram_[i] = displayHistogram_[i] > 0 ? (int) (1000 * Math.log(displayHistogram_[i])) : 0;
-         }
-      }
-
-      histogramData.setData(displayHistogram_);
-      hp_.setData(histogramData);
+      //Draw histogram and stats, binned already by the thread that made the histogram
+      histogramData_.copyData(histogram.getBins());
+      hp_.setData(histogramData_);
       hp_.setAutoScale();
       hp_.repaint();
-      minMaxLabel_.setText("Min: " + pixelMin_ + "   " + "Max: " + pixelMax_);
+      int pixelMin = histogram.getTotal() == 0 ? -1 : histogram.getPixelMin();
+      int pixelMax = histogram.getPixelMax();
+      if (pixelMin != pixelMin_ || pixelMax != pixelMax_) {
+         pixelMin_ = pixelMin;
+         pixelMax_ = pixelMax;
+         minMaxLabel_.setText("Min: " + pixelMin_ + "   " + "Max: " + pixelMax_);
+      }
       redraw();
 
    }
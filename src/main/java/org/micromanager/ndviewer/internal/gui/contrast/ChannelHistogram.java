@@ -0,0 +1,344 @@
+package org.micromanager.ndviewer.internal.gui.contrast;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of the pixel values of one channel, with a cumulative sum over
+ * its bins so that minimum, maximum and percentile queries are binary
+ * searches rather than scans. Large images can be counted from a sample of
+ * their pixels, taken either as single pixels at a fixed stride or as short
+ * runs of adjacent pixels, sized to meet a target accuracy of the percentiles.
+ *
+ * Call {@link #finish} after counting, before querying. The coarser bins shown
+ * in the histogram panel can then be summed up front with
+ * {@link #prepareDisplayBins}, off the event dispatch thread, which is handed
+ * an immutable {@link DisplayHistogram} rather than the histogram itself.
+ */
+public final class ChannelHistogram {
+
+   public enum Sampling {
+      /**
+       * Count single pixels spaced evenly through the image
+       */
+      STRIDE,
+      /**
+       * Count runs of adjacent pixels spaced evenly through the image, which
+       * reads memory sequentially
+       */
+      BLOCK
+   }
+
+   // Default target for the error of percentile queries, as a fraction of all pixels
+   public static final double DEFAULT_ACCURACY = 0.0005;
+   private static final int BLOCK_LENGTH = 64;
+
+   private final int[] counts_;
+   private final int[] cumulative_;
+   private int total_ = 0;
+   private int sampleStep_ = 1;
+   private int pixelMin_ = 0, pixelMax_ = 0;
+   // Counts summed into display bins, or null if not prepared since the last finish
+   private volatile DisplayHistogram display_ = null;
+
+   /**
+    * @param numBins one bin per possible pixel value
+    */
+   public ChannelHistogram(int numBins) {
+      counts_ = new int[numBins];
+      cumulative_ = new int[numBins];
+   }
+
+   /**
+    * Number of samples needed for percentiles to be within the given error
+    * with high probability, independent of the image size.
+    *
+    * @param accuracy error of percentile queries as a fraction of all pixels,
+    *                 or 0 to count every pixel
+    * @return number of samples, or Integer.MAX_VALUE for every pixel
+    */
+   public static int samplesForAccuracy(double accuracy) {
+      if (!(accuracy > 0)) {
+         return Integer.MAX_VALUE;
+      }
+      // The standard error of a sampled percentile is at most 0.5 / sqrt(n), aim for
+      // twice that to be within the target almost always
+      return (int) Math.min(Integer.MAX_VALUE, Math.ceil(1.0 / (accuracy * accuracy)));
+   }
+
+   /**
+    * @param numBins number of bins of the histogram
+    * @param bitDepth bit depth of the channel
+    * @return number of histogram bins per bin of the histogram panel
+    */
+   public static int displayBinSize(int numBins, int bitDepth) {
+      return numBins == 256 || bitDepth <= 8 ? 1 : 1 << (bitDepth - 8);
+   }
+
+   public int getNumBins() {
+      return counts_.length;
+   }
+
+   public void clear() {
+      Arrays.fill(counts_, 0);
+      total_ = 0;
+      sampleStep_ = 1;
+   }
+
+   /**
+    * Count the pixels of an image, or a sample of them if there are more
+    * than maxSamples.
+    *
+    * @param pixels byte[] or short[] pixels
+    * @param numPixels number of pixels to consider
+    * @param maxSamples upper limit on the pixels counted
+    * @param sampling how to choose the pixels when sampling
+    */
+   public void count(Object pixels, int numPixels, int maxSamples, Sampling sampling) {
+      int step = numPixels <= maxSamples ? 1 : (numPixels + maxSamples - 1) / maxSamples;
+      if (step > 1 && sampling == Sampling.STRIDE && step % 2 == 0) {
+         // An odd stride doesn't line up with the columns of images of even width
+         step++;
+      }
+      sampleStep_ = step;
+      int[] counts = counts_;
+      int counted = 0;
+      if (step == 1 || sampling == Sampling.STRIDE) {
+         if (pixels instanceof short[]) {
+            short[] pix = (short[]) pixels;
+            for (int i = step / 2; i < numPixels; i += step) {
+               counts[pix[i] & 0xffff]++;
+               counted++;
+            }
+         } else {
+            byte[] pix = (byte[]) pixels;
+            for (int i = step / 2; i < numPixels; i += step) {
+               counts[pix[i] & 0xff]++;
+               counted++;
+            }
+         }
+      } else {
+         int blockStride = step * BLOCK_LENGTH;
+         for (int start = (step / 2) * BLOCK_LENGTH; start < numPixels; start += blockStride) {
+            int end = Math.min(numPixels, start + BLOCK_LENGTH);
+            if (pixels instanceof short[]) {
+               short[] pix = (short[]) pixels;
+               for (int i = start; i < end; i++) {
+                  counts[pix[i] & 0xffff]++;
+               }
+            } else {
+               byte[] pix = (byte[]) pixels;
+               for (int i = start; i < end; i++) {
+                  counts[pix[i] & 0xff]++;
+               }
+            }
+            counted += end - start;
+         }
+      }
+      total_ += counted;
+   }
+
+   /**
+    * Replace the counts with previously computed ones, e.g. from a cache
+    *
+    * @param counts counts of each bin, of the same length as this histogram
+    * @param sampleStep sampling step the counts were made with
+    */
+   public void setCounts(int[] counts, int sampleStep) {
+      setCounts(counts, 0, sampleStep);
+   }
+
+   /**
+    * Like {@link #setCounts(int[], int)}, for counts of a range of bins with
+    * all others empty
+    *
+    * @param counts counts of the bins from firstBin on
+    * @param firstBin bin of the first count
+    * @param sampleStep sampling step the counts were made with
+    */
+   public void setCounts(int[] counts, int firstBin, int sampleStep) {
+      Arrays.fill(counts_, 0);
+      System.arraycopy(counts, 0, counts_, firstBin, counts.length);
+      total_ = 0;
+      for (int c : counts) {
+         total_ += c;
+      }
+      sampleStep_ = sampleStep;
+   }
+
+   /**
+    * Replace the counts with the sum of those of other histograms, e.g. the
+    * color components of an RGB image
+    */
+   public void setSum(ChannelHistogram... histograms) {
+      Arrays.fill(counts_, 0);
+      total_ = 0;
+      sampleStep_ = 1;
+      for (ChannelHistogram h : histograms) {
+         for (int i = 0; i < counts_.length; i++) {
+            counts_[i] += h.counts_[i];
+         }
+         total_ += h.total_;
+         sampleStep_ = Math.max(sampleStep_, h.sampleStep_);
+      }
+   }
+
+   /**
+    * Compute the cumulative sum and extremes after counting
+    */
+   public void finish() {
+      int sum = 0;
+      int[] counts = counts_;
+      int[] cumulative = cumulative_;
+      for (int i = 0; i < counts.length; i++) {
+         sum += counts[i];
+         cumulative[i] = sum;
+      }
+      total_ = sum;
+      pixelMin_ = total_ == 0 ? 0 : firstBinAbove(0);
+      pixelMax_ = total_ == 0 ? 0 : firstBinAtLeast(total_);
+      display_ = null;
+   }
+
+   /**
+    * Sum the counts into the bins shown in the histogram panel, so that the
+    * event dispatch thread doesn't have to. Call after {@link #finish}.
+    *
+    * @param binSize from {@link #displayBinSize}
+    * @param log whether to show the logarithm of the counts
+    */
+   public void prepareDisplayBins(int binSize, boolean log) {
+      double[] bins = new double[DisplaySettings.NUM_DISPLAY_HIST_BINS];
+      fillDisplayBins(bins, binSize, log);
+      display_ = new DisplayHistogram(bins, binSize, log, total_, pixelMin_, pixelMax_);
+   }
+
+   /**
+    * @return bins prepared by {@link #prepareDisplayBins} since the last
+    * {@link #finish}, or null if there are none
+    */
+   public DisplayHistogram getDisplayHistogram() {
+      return display_;
+   }
+
+   /**
+    * Sum the counts into the bins shown in the histogram panel, as 1000 times
+    * the natural logarithm of each sum if log is set. Only the bins between
+    * the smallest and largest values counted are visited.
+    *
+    * @param out display bins, {@link DisplaySettings#NUM_DISPLAY_HIST_BINS} long
+    * @param binSize from {@link #displayBinSize}
+    * @param log whether to take the logarithm of the counts
+    */
+   public void fillDisplayBins(double[] out, int binSize, boolean log) {
+      Arrays.fill(out, 0);
+      int numDisplayBins = Math.min(counts_.length / binSize, out.length);
+      if (total_ == 0) {
+         return;
+      }
+      int end = Math.min(pixelMax_ + 1, numDisplayBins * binSize);
+      for (int i = pixelMin_; i < end; i++) {
+         out[i / binSize] += counts_[i];
+      }
+      if (log) {
+         for (int i = pixelMin_ / binSize; i < numDisplayBins; i++) {
+            if (out[i] > 0) {
+               out[i] = (int) (1000 * Math.log(out[i]));
+            }
+         }
+      }
+   }
+
+   /**
+    * @return the counts of each bin. Not to be modified
+    */
+   public int[] getCounts() {
+      return counts_;
+   }
+
+   /**
+    * @return number of pixels counted
+    */
+   public int getTotal() {
+      return total_;
+   }
+
+   /**
+    * @return 1 if every pixel was counted, otherwise roughly how many pixels
+    * there are per pixel counted
+    */
+   public int getSampleStep() {
+      return sampleStep_;
+   }
+
+   /**
+    * @return smallest value counted
+    */
+   public int getPixelMin() {
+      return pixelMin_;
+   }
+
+   /**
+    * @return largest value counted
+    */
+   public int getPixelMax() {
+      return pixelMax_;
+   }
+
+   /**
+    * @param fraction between 0 and 1
+    * @return smallest value that at least the given fraction of pixels are
+    * less than or equal to
+    */
+   public int getPercentile(double fraction) {
+      if (total_ == 0) {
+         return 0;
+      }
+      long rank = (long) Math.ceil(fraction * total_);
+      return firstBinAtLeast((int) Math.max(1, Math.min(total_, rank)));
+   }
+
+   /**
+    * Minimum after ignoring a fraction of the lowest pixels, as in
+    * {@link HistogramUtils#getMinAfterRejectingOutliers}
+    */
+   public int getMinAfterRejectingOutliers(double fractionToReject) {
+      int maxOutliers = (int) (0.5 + total_ * fractionToReject);
+      if (maxOutliers >= total_) {
+         return 0;
+      }
+      return firstBinAbove(maxOutliers);
+   }
+
+   /**
+    * Maximum after ignoring a fraction of the highest pixels, as in
+    * {@link HistogramUtils#getMaxAfterRejectingOutliers}
+    */
+   public int getMaxAfterRejectingOutliers(double fractionToReject) {
+      int maxOutliers = (int) (0.5 + total_ * fractionToReject);
+      if (maxOutliers >= total_) {
+         return 0;
+      }
+      // Highest bin with more than maxOutliers pixels at or above it
+      return firstBinAtLeast(total_ - maxOutliers);
+   }
+
+   // First bin whose cumulative count is greater than n
+   private int firstBinAbove(int n) {
+      return firstBinAtLeast(n + 1);
+   }
+
+   // First bin whose cumulative count is at least n
+   private int firstBinAtLeast(int n) {
+      int lo = 0;
+      int hi = cumulative_.length - 1;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (cumulative_[mid] >= n) {
+            hi = mid;
+         } else {
+            lo = mid + 1;
+         }
+      }
+      return lo;
+   }
+}
@@ -325,7 +325,7 @@ public class ContrastPanel extends JPanel {
       saveCheckBoxStates();
    }
 
-   public void updateHistogramData(HashMap<String, int[]> hists) {
+   public void updateHistogramData(HashMap<String, DisplayHistogram> hists) {
       histograms_.updateHistogramData(hists);
    }
 
@@ -0,0 +1,68 @@
+package org.micromanager.ndviewer.internal.gui.contrast;
+
+/**
+ * What the histogram panel of a channel shows: the counts of a
+ * {@link ChannelHistogram} summed into display bins, along with the smallest
+ * and largest values counted. Immutable, so that it can be handed to the
+ * event dispatch thread while the histogram it was made from is reused for
+ * later frames.
+ */
+public final class DisplayHistogram {
+
+   private final double[] bins_;
+   private final int binSize_;
+   private final boolean log_;
+   private final int total_;
+   private final int pixelMin_, pixelMax_;
+
+   DisplayHistogram(double[] bins, int binSize, boolean log, int total, int pixelMin, int pixelMax) {
+      bins_ = bins;
+      binSize_ = binSize;
+      log_ = log;
+      total_ = total;
+      pixelMin_ = pixelMin;
+      pixelMax_ = pixelMax;
+   }
+
+   /**
+    * @return the display bins. Not to be modified
+    */
+   public double[] getBins() {
+      return bins_;
+   }
+
+   /**
+    * @return number of histogram bins per display bin
+    */
+   public int getBinSize() {
+      return binSize_;
+   }
+
+   /**
+    * @return whether the bins hold the logarithm of the counts
+    */
+   public boolean isLog() {
+      return log_;
+   }
+
+   /**
+    * @return number of pixels counted
+    */
+   public int getTotal() {
+      return total_;
+   }
+
+   /**
+    * @return smallest value counted
+    */
+   public int getPixelMin() {
+      return pixelMin_;
+   }
+
+   /**
+    * @return largest value counted
+    */
+   public int getPixelMax() {
+      return pixelMax_;
+   }
+}
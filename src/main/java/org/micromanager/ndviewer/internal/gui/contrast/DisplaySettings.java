@@ -18,12 +18,19 @@
 package org.micromanager.ndviewer.internal.gui.contrast;
 
 import java.awt.Color;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.prefs.Preferences;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
 
 /**
- * Class used to store and modify Display Settings of the viewer.
+ * Class used to store and modify Display Settings of the viewer. Settings are
+ * kept as JSON for saving, but code that reads them for every frame should
+ * use {@link #getSnapshot}, which doesn't lock or parse anything unless the
+ * settings changed.
  */
 public class DisplaySettings {
 
@@ -42,6 +49,141 @@ public class DisplaySettings {
 
    private final JSONObject json_;
    private final Preferences preferences_;
+   // Incremented on every change, guarded by monitor on this
+   private long version_ = 0;
+   // Snapshot of the current version, or null if it hasn't been made yet
+   private volatile Snapshot snapshot_;
+
+   /**
+    * Settings of one channel at the time of a {@link Snapshot}
+    */
+   public static final class ChannelSettings {
+
+      public final Color color;
+      public final int bitDepth;
+      public final double gamma;
+      public final int contrastMin;
+      public final int contrastMax;
+      public final boolean active;
+
+      private ChannelSettings(JSONObject json) {
+         color = new Color(json.optInt("Color", Color.white.getRGB()));
+         bitDepth = json.optInt("BitDepth", 16);
+         gamma = json.optDouble("Gamma", 1.0);
+         contrastMin = json.optInt("Min", 0);
+         contrastMax = json.optInt("Max", (int) (Math.pow(2, bitDepth) - 1));
+         active = json.optBoolean("Active", true);
+      }
+   }
+
+   /**
+    * Immutable copy of all settings, which can be read from any thread
+    * without locking. Getters return the same defaults as those of
+    * {@link DisplaySettings} for missing channels, but never add channels.
+    */
+   public static final class Snapshot {
+
+      private final long version_;
+      private final Map<String, ChannelSettings> channels_;
+      private final boolean autoscale_;
+      private final boolean logHistogram_;
+      private final boolean compositeMode_;
+      private final boolean syncChannels_;
+      private final boolean ignoreOutliers_;
+      private final double percentToIgnore_;
+
+      private Snapshot(long version, JSONObject json) {
+         version_ = version;
+         HashMap<String, ChannelSettings> channels = new HashMap<String, ChannelSettings>();
+         JSONObject all = json.optJSONObject(ALL_CHANNELS_SETTINGS_KEY);
+         if (all == null) {
+            all = new JSONObject();
+         }
+         Iterator<String> keys = json.keys();
+         while (keys.hasNext()) {
+            String key = keys.next();
+            JSONObject channel = json.optJSONObject(key);
+            if (!key.equals(ALL_CHANNELS_SETTINGS_KEY) && channel != null) {
+               channels.put(key, new ChannelSettings(channel));
+            }
+         }
+         channels_ = Collections.unmodifiableMap(channels);
+         autoscale_ = all.optBoolean(AUTOSCALE, true);
+         logHistogram_ = all.optBoolean(LOG_HIST, true);
+         compositeMode_ = all.optBoolean(COMPOSITE, true);
+         syncChannels_ = all.optBoolean(SYNC_CHANNELS, false);
+         ignoreOutliers_ = all.optBoolean(IGNORE_OUTLIERS, false);
+         percentToIgnore_ = all.optDouble(IGNORE_PERCENTAGE, 0.1);
+      }
+
+      /**
+       * @return number that increases whenever the settings change
+       */
+      public long getVersion() {
+         return version_;
+      }
+
+      /**
+       * @return settings of the channel, or null if there are none
+       */
+      public ChannelSettings getChannel(String channelName) {
+         return channels_.get(channelName);
+      }
+
+      public Color getColor(String channelName) {
+         ChannelSettings c = channels_.get(channelName);
+         return c == null ? Color.white : c.color;
+      }
+
+      public int getBitDepth(String channelName) {
+         ChannelSettings c = channels_.get(channelName);
+         return c == null ? 16 : c.bitDepth;
+      }
+
+      public double getContrastGamma(String channelName) {
+         ChannelSettings c = channels_.get(channelName);
+         return c == null ? 1.0 : c.gamma;
+      }
+
+      public int getContrastMin(String channelName) {
+         ChannelSettings c = channels_.get(channelName);
+         return c == null ? 0 : c.contrastMin;
+      }
+
+      public int getContrastMax(String channelName) {
+         ChannelSettings c = channels_.get(channelName);
+         return c == null ? (int) (Math.pow(2, 16) - 1) : c.contrastMax;
+      }
+
+      public boolean isActive(String channelName) {
+         ChannelSettings c = channels_.get(channelName);
+         return c == null || c.active;
+      }
+
+      public boolean getAutoscale() {
+         return autoscale_;
+      }
+
+      public boolean isLogHistogram() {
+         return logHistogram_;
+      }
+
+      public boolean isCompositeMode() {
+         return compositeMode_;
+      }
+
+      public boolean isSyncChannels() {
+         return syncChannels_;
+      }
+
+      public boolean ignoreFractionOn() {
+         return ignoreOutliers_;
+      }
+
+      public double percentToIgnore() {
+         return percentToIgnore_;
+      }
+   }
 
    //for reading from disk
    public DisplaySettings(JSONObject json, Preferences preferences) {
@@ -54,6 +196,29 @@ public class DisplaySettings {
       }
    }
 
+   /**
+    * @return immutable copy of the current settings, made again only after
+    * they change
+    */
+   public Snapshot getSnapshot() {
+      Snapshot snapshot = snapshot_;
+      if (snapshot != null) {
+         return snapshot;
+      }
+      synchronized (this) {
+         if (snapshot_ == null) {
+            snapshot_ = new Snapshot(version_, json_);
+         }
+         return snapshot_;
+      }
+   }
+
+   // Call with the monitor on this held after each change
+   private void changed() {
+      version_++;
+      snapshot_ = null;
+   }
+
    public JSONObject toJSON() {
       try {
          //make copy
@@ -81,7 +246,7 @@ public class DisplaySettings {
       }
    }
 
-   public void addChannel(String cName, int bitDepth) {
+   public synchronized void addChannel(String cName, int bitDepth) {
       try {
          //load from preferences
          int colorInt = preferences_.getInt(PREF_KEY_COLOR + cName, -1);
@@ -96,6 +261,7 @@ public class DisplaySettings {
          channelDisp.put("Max", (int) Math.pow(2, bitDepth) - 1);
          channelDisp.put("Active", true);
          json_.put(cName, channelDisp);
+         changed();
       } catch (JSONException ex) {
          //this wont happen
       }
@@ -181,7 +347,11 @@ public class DisplaySettings {
    public void setActive(String channelName, boolean selected) {
       synchronized (this) {
          try {
-            json_.getJSONObject(channelName).put("Active", selected);
+            JSONObject channel = json_.getJSONObject(channelName);
+            if (channel.optBoolean("Active", !selected) != selected) {
+               channel.put("Active", selected);
+               changed();
+            }
          } catch (Exception ex) {
             System.err.println("Couldnt set display setting");
          }
@@ -198,6 +368,7 @@ public class DisplaySettings {
                addChannel(channelName, 16);
             }
             json_.getJSONObject(channelName).put("Color", color.getRGB());
+            changed();
             preferences_.putInt(PREF_KEY_COLOR + channelName, color.getRGB());
          } catch (Exception ex) {
             System.err.println("Couldnt set display setting");
@@ -220,6 +391,7 @@ public class DisplaySettings {
                });
             }
             json_.getJSONObject(channelName).put("Gamma", gamma);
+            changed();
          } catch (Exception ex) {
             System.err.println("Couldnt set display setting");
          }
@@ -229,6 +401,11 @@ public class DisplaySettings {
    public void setContrastMin(String channelName, int contrastMin) {
       synchronized (this) {
          int boundedContrastMin = Math.max(0, contrastMin);
+         if (!isSyncChannels() && json_.has(channelName)
+                 && getContrastMin(channelName) == boundedContrastMin
+                 && getContrastMax(channelName) >= boundedContrastMin) {
+            return; // Unchanged, e.g. autoscaling to the same range as last frame
+         }
          try {
             if (isSyncChannels()) {
                json_.keys().forEachRemaining((String t) -> {
@@ -246,6 +423,7 @@ public class DisplaySettings {
             json_.getJSONObject(channelName).put("Min", boundedContrastMin);
             json_.getJSONObject(channelName).put("Max",
                   Math.max(boundedContrastMin, getContrastMax(channelName)));
+            changed();
          } catch (Exception ex) {
             System.err.println("Couldnt set display setting");
          }
@@ -255,6 +433,11 @@ public class DisplaySettings {
    public void setContrastMax(String channelName, int contrastMax) {
       synchronized (this) {
          int boundedContrastMax = Math.max(0, contrastMax);
+         if (!isSyncChannels() && json_.has(channelName)
+                 && getContrastMax(channelName) == boundedContrastMax
+                 && getContrastMin(channelName) <= boundedContrastMax) {
+            return; // Unchanged
+         }
          try {
             if (isSyncChannels()) {
                json_.keys().forEachRemaining((String t) -> {
@@ -273,6 +456,7 @@ public class DisplaySettings {
             json_.getJSONObject(channelName).put("Max", boundedContrastMax);
             json_.getJSONObject(channelName).put("Min",
                     Math.min(boundedContrastMax, getContrastMin(channelName)));
+            changed();
 
          } catch (JSONException ex) {
             System.err.println("Couldnt set display setting");
@@ -346,7 +530,7 @@ public class DisplaySettings {
       }
    }
 
-   public void setChannelContrastFromFirst() {
+   public synchronized void setChannelContrastFromFirst() {
       try {
          String firstChannel = json_.keys().next();
          JSONObject first = json_.getJSONObject(firstChannel);
@@ -365,6 +549,7 @@ public class DisplaySettings {
                }
             }
          });
+         changed();
       } catch (JSONException ex) {
          System.err.println(ex);
       }
@@ -374,6 +559,7 @@ public class DisplaySettings {
       synchronized (this) {
          try {
             json_.getJSONObject(ALL_CHANNELS_SETTINGS_KEY).put(IGNORE_PERCENTAGE, percent);
+            changed();
          } catch (JSONException ex) {
             System.err.println("Couldnt set autoscale");
          }
@@ -384,6 +570,7 @@ public class DisplaySettings {
       synchronized (this) {
          try {
             json_.getJSONObject(ALL_CHANNELS_SETTINGS_KEY).put(IGNORE_OUTLIERS, b);
+            changed();
          } catch (JSONException ex) {
             System.err.println("Couldnt set autoscale");
          }
@@ -394,6 +581,7 @@ public class DisplaySettings {
       synchronized (this) {
          try {
             json_.getJSONObject(ALL_CHANNELS_SETTINGS_KEY).put(LOG_HIST, b);
+            changed();
          } catch (JSONException ex) {
             System.err.println("Couldnt set autoscale");
          }
@@ -404,6 +592,7 @@ public class DisplaySettings {
       synchronized (this) {
          try {
             json_.getJSONObject(ALL_CHANNELS_SETTINGS_KEY).put(AUTOSCALE, b);
+            changed();
          } catch (JSONException ex) {
             System.err.println("Couldnt set autoscale");
          }
@@ -414,6 +603,7 @@ public class DisplaySettings {
       synchronized (this) {
          try {
             json_.getJSONObject(ALL_CHANNELS_SETTINGS_KEY).put(SYNC_CHANNELS, b);
+            changed();
          } catch (JSONException ex) {
             System.err.println("Couldnt set autoscale");
          }
@@ -424,17 +614,19 @@ public class DisplaySettings {
       synchronized (this) {
          try {
             json_.getJSONObject(ALL_CHANNELS_SETTINGS_KEY).put(COMPOSITE, b);
+            changed();
          } catch (JSONException ex) {
             System.err.println("Couldnt set autoscale");
          }
       }
    }
 
-   public void removeChannel(String channelName) {
+   public synchronized void removeChannel(String channelName) {
       json_.remove(channelName);
+      changed();
    }
 
-   public boolean containsChannel(String channelName) {
+   public synchronized boolean containsChannel(String channelName) {
       return json_.has(channelName);
    }
 }
@@ -31,6 +31,9 @@ public class GraphData {
    private double xVals_[];
    private double yVals_[];
    private double xBinSize_;
+   // Whether xVals_ and yVals_ were allocated here, with x values 0, 1, 2...,
+   // rather than handed in, so they can be overwritten
+   private boolean ownArrays_ = true;
    
    public class Bounds {
       public double xMin;
@@ -114,6 +117,7 @@ public class GraphData {
    public void setData(double xVals[], double yVals[]) {
       xVals_ = xVals;
       yVals_ = yVals;   
+      ownArrays_ = false;
    }
    
    public void setData(double yVals[]) {
@@ -122,15 +126,35 @@ public class GraphData {
       for (int i=0; i<xVals_.length; i++) {
          xVals_[i] = i;
       }
+      ownArrays_ = false;
    }
    
    public void setData(int yIntVals[]) {
-      yVals_ = new double[yIntVals.length];
-      xVals_ = new double[yIntVals.length];
+      prepareOwnArrays(yIntVals.length);
       for (int i=0; i<yIntVals.length; i++){
          yVals_[i] = yIntVals[i];
+      }
+   }
+
+   /**
+    * Copy y values, with x values 0, 1, 2..., into the arrays already held,
+    * which are only reallocated when the number of values changes
+    */
+   public void copyData(double yVals[]) {
+      prepareOwnArrays(yVals.length);
+      System.arraycopy(yVals, 0, yVals_, 0, yVals.length);
+   }
+
+   private void prepareOwnArrays(int length) {
+      if (ownArrays_ && xVals_.length == length && yVals_.length == length) {
+         return;
+      }
+      yVals_ = new double[length];
+      xVals_ = new double[length];
+      for (int i=0; i<length; i++){
          xVals_[i] = i;
       }
+      ownArrays_ = true;
    }
 
 }
@@ -152,7 +152,7 @@ final class MultiChannelHistograms extends JPanel {
       return ccpList_.size();
    }
 
-   void updateHistogramData(HashMap<String, int[]> hists) {
+   void updateHistogramData(HashMap<String, DisplayHistogram> hists) {
       synchronized (ccpList_) {
          if (ccpList_ == null || hists == null || ccpList_.size() == 0) {
             return; // no channels added yet
@@ -163,7 +163,7 @@ final class MultiChannelHistograms extends JPanel {
          }
          for (String i : hists.keySet()) {
             ChannelControlPanel c = ccpList_.get(i);
-            int[] hist = hists.get(i);
+            DisplayHistogram hist = hists.get(i);
             if (hist == null) {
                continue; // not provided for this channel
             }
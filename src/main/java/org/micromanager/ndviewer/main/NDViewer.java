@@ -19,10 +19,11 @@ import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.prefs.Preferences;
@@ -42,10 +43,17 @@ import org.micromanager.ndviewer.internal.gui.AxisScroller;
 import org.micromanager.ndviewer.internal.gui.CoalescentExecutor;
 import org.micromanager.ndviewer.internal.gui.CoalescentRunnable;
 import org.micromanager.ndviewer.internal.gui.DataViewCoords;
+import org.micromanager.ndviewer.internal.gui.DatasetContrastStatistics;
 import org.micromanager.ndviewer.internal.gui.DisplayCoalescentEDTRunnablePool;
+import org.micromanager.ndviewer.internal.gui.DisplayImageCache;
+import org.micromanager.ndviewer.internal.gui.HistogramCache;
+import org.micromanager.ndviewer.internal.gui.DisplayScheduler;
+import org.micromanager.ndviewer.internal.gui.ImageArrivalQueue;
 import org.micromanager.ndviewer.internal.gui.DisplayModel;
 import org.micromanager.ndviewer.internal.gui.GuiManager;
 import org.micromanager.ndviewer.internal.gui.ViewerCanvas;
+import org.micromanager.ndviewer.internal.gui.contrast.ChannelHistogram;
+import org.micromanager.ndviewer.internal.gui.contrast.DisplayHistogram;
 import org.micromanager.ndviewer.internal.gui.contrast.DisplaySettings;
 import org.micromanager.ndviewer.overlay.Overlay;
 
@@ -62,6 +70,23 @@ public class NDViewer implements NDViewerAPI {
          new CoalescentExecutor("Display calculation executor");
    private CoalescentExecutor overlayCalculationExecutor_ =
          new CoalescentExecutor("Overlay calculation executor");
+   // Histograms that weren't needed to render a frame are counted here after it is shown
+   private CoalescentExecutor histogramCalculationExecutor_ =
+         new CoalescentExecutor("Histogram calculation executor", Thread.MIN_PRIORITY);
+   // Paces display computations to a target frame rate
+   private DisplayScheduler displayScheduler_ =
+         new DisplayScheduler("Display frame clock", displayCalculationExecutor_);
+   // New image notifications, handled in batches so acquisition threads never wait on the viewer
+   private final ImageArrivalQueue imageArrivals_ = new ImageArrivalQueue("Image arrival thread",
+         this::imagesArrived, this::imagesMergedAway);
+   // Contrast statistics over many images, for autoscaling without flicker
+   private final DatasetContrastStatistics contrastStatistics_;
+   // Where histograms are kept between sessions, or null if they aren't
+   private volatile File histogramSidecar_ = null;
+   // Most recently submitted display computation, so stale ones can skip work
+   private volatile DisplayImageComputationRunnable latestDisplayRequest_;
+   // Held while registering image keys
+   private final Object imageKeysLock_ = new Object();
 
 
 
@@ -98,6 +123,8 @@ public class NDViewer implements NDViewerAPI {
       }
       displayModel_ = new DisplayModel(this, dataSource_, getPreferences(), rgb);
       guiManager_ = new GuiManager(this, acq_ !=null);
+      contrastStatistics_ = new DatasetContrastStatistics(dataSource_,
+              guiManager_.getHistogramCache(), this::update);
    }
 
    public void setReadTimeMetadataFunction(Function<JSONObject, Long> fn) {
@@ -153,7 +180,6 @@ public class NDViewer implements NDViewerAPI {
    public void initializeViewerToLoaded(JSONObject dispSettings) {
 
       displayModel_.setDisplaySettings_(new DisplaySettings(dispSettings, getPreferences()));
-      Set<HashMap<String, Object>> axesList = dataSource_.getImageKeys();
 //      //Hide row and column axes form the viewer
 //      if (axesNames.contains(MagellanMD.AXES_GRID_ROW)) {
 //         axesNames.remove(MagellanMD.AXES_GRID_ROW);
@@ -162,43 +188,12 @@ public class NDViewer implements NDViewerAPI {
 //         axesNames.remove(MagellanMD.AXES_GRID_COL);
 //      }
 
-      for (HashMap<String, Object> axesPositions : axesList) {
-         if (axesPositions.keySet().contains(NDViewer.CHANNEL_AXIS)) {
-            String channel = (String) axesPositions.get(NDViewer.CHANNEL_AXIS);
-            if (!displayModel_.getDisplayedChannels().contains(channel)) {
-               getGUIManager().addContrastControlsIfNeeded(channel);
-               // Make this channel option appear on scrollbars
-               edtRunnablePool_.invokeLaterWithCoalescence(
-                       new NDViewer.ExpandDisplayRangeCoalescentRunnable(axesPositions));
-            }
-         }
-         displayModel_.parseNewAxesToUpdateDisplayModel(axesPositions);
-      }
+      // Contrast controls for each channel are added along the way
+      registerImageKeys(dataSource_.getImageKeys());
 
       //TODO: wheres the override to ignore row/column axes?
-      HashMap<String, Object> axisMins = new HashMap<String, Object>();
-      HashMap<String, Object> axisMaxs = new HashMap<String, Object>();
-      for (HashMap<String, Object> ax : axesList) {
-         for (String axis : ax.keySet()) {
-            if (!getDisplayModel().isIntegerAxis(axis)) {
-               continue; // String axis, no min or max
-            }
-            if (!axisMins.containsKey(axis)) {
-               axisMins.put(axis, ax.get(axis));
-               axisMaxs.put(axis, ax.get(axis));
-            }
-            axisMins.put(axis, Math.min((Integer) ax.get(axis), (Integer) axisMins.get(axis)));
-            axisMaxs.put(axis, Math.max((Integer) ax.get(axis), (Integer) axisMaxs.get(axis)));
-         }
-
-      }
-
-
-      //maximum scrollbar extents
-      edtRunnablePool_.invokeLaterWithCoalescence(
-              new NDViewer.ExpandDisplayRangeCoalescentRunnable(axisMaxs));
-      edtRunnablePool_.invokeLaterWithCoalescence(
-              new NDViewer.ExpandDisplayRangeCoalescentRunnable(axisMins));
+      //maximum scrollbar extents, then back to the start
+      expandDisplayRange(displayModel_.getAxesIndex().getAxisMins());
    }
 
    public void channelSetActiveByCheckbox(String channelName, boolean selected) {
@@ -216,22 +211,158 @@ public class NDViewer implements NDViewerAPI {
     * @param axesPositions Hashmap of axis labels to positions
     */
    public void newImageArrived(HashMap<String, Object> axesPositions) {
-      try {
+      // Handled on the image arrival thread, so this never blocks
+      imageArrivals_.offer(axesPositions);
+   }
 
-         displayModel_.updateDisplayBounds();
+   /**
+    * @return queue of new image notifications, whose capacity and overflow
+    * policy can be changed
+    */
+   public ImageArrivalQueue getImageArrivalQueue() {
+      return imageArrivals_;
+   }
 
-         // This will go on to update the GUI as needed
-         displayModel_.parseNewAxesToUpdateDisplayModel(axesPositions);
+   /**
+    * @return statistics over a subset of the images, which autoscaling uses
+    * in place of those of the displayed images once its scope is set
+    */
+   public DatasetContrastStatistics getContrastStatistics() {
+      return contrastStatistics_;
+   }
 
-         //expand the scrollbars with new images
-         edtRunnablePool_.invokeLaterWithCoalescence(
-                 new NDViewer.ExpandDisplayRangeCoalescentRunnable(axesPositions));
-         //move scrollbars to new position
-      } catch (Exception e) {
-         e.printStackTrace();
+   /**
+    * Keep the histograms of images in a file next to the dataset, so that
+    * autoscaling and the histogram display don't need to count the pixels
+    * of images that were seen when the dataset was last open. Histograms
+    * saved previously are loaded when enabled, and all known histograms are
+    * saved when the viewer closes.
+    *
+    * @param persist whether to load and save the histogram file
+    */
+   public void setPersistHistograms(boolean persist) {
+      if (!persist) {
+         histogramSidecar_ = null;
+         return;
+      }
+      File file = HistogramCache.sidecarFile(dataSource_.getDiskLocation());
+      histogramSidecar_ = file;
+      if (file != null && file.exists()) {
+         try {
+            guiManager_.getHistogramCache().load(file, HistogramCache.datasetFingerprint(
+                    dataSource_.getDiskLocation(), dataSource_.getBounds(), getDatasetBitDepth()));
+         } catch (IOException ex) {
+            System.err.println("Couldn't load histograms from " + file);
+            ex.printStackTrace();
+         }
       }
    }
 
+   /**
+    * @return bit depth of an image of the dataset, or 0 if there are none
+    */
+   private int getDatasetBitDepth() {
+      Iterator<HashMap<String, Object>> keys = dataSource_.getImageKeys().iterator();
+      return keys.hasNext() ? dataSource_.getImageBitDepth(keys.next()) : 0;
+   }
+
+   /**
+    * Signal to viewer that many images are available at once, e.g. when
+    * opening a dataset that is already on disk. The extents of the axes and
+    * the values of string axes are gathered in a single pass over the keys,
+    * and the GUI is updated once at the end. Blocks until done.
+    *
+    * @param axesPositionsList axes of each image. Streams can be passed as
+    *                          {@code stream::iterator}
+    */
+   @Override
+   public void newImagesArrived(Iterable<HashMap<String, Object>> axesPositionsList) {
+      if (closed_ || displayModel_ == null) {
+         return;
+      }
+      List<HashMap<String, Object>> keys = registerImageKeys(axesPositionsList);
+      if (keys.isEmpty()) {
+         return;
+      }
+      // Cached pixels for these axes may be out of date now
+      guiManager_.onNewImagesArrived(keys);
+      contrastStatistics_.imagesArrived(keys);
+      expandDisplayRange(keys.get(keys.size() - 1));
+   }
+
+   private void imagesArrived(List<HashMap<String, Object>> batch) {
+      if (closed_ || displayModel_ == null) {
+         return;
+      }
+      registerImageKeys(batch);
+      // Cached pixels for these axes may be out of date now
+      guiManager_.onNewImagesArrived(batch);
+      contrastStatistics_.imagesArrived(batch);
+
+      //expand the scrollbars with new images and move them to the newest one
+      edtRunnablePool_.invokeLaterWithCoalescence(
+              new NDViewer.ExpandDisplayRangeCoalescentRunnable(batch));
+   }
+
+   /**
+    * Catch up after notifications overflowed the queue and were merged, by
+    * going through all image keys in the data source.
+    *
+    * @param latest the most recent notification that was merged
+    */
+   private void imagesMergedAway(HashMap<String, Object> latest) {
+      if (closed_ || displayModel_ == null) {
+         return;
+      }
+      List<HashMap<String, Object>> keys = registerImageKeys(dataSource_.getImageKeys());
+      // No telling which images changed
+      guiManager_.invalidateAllImages();
+      // Only images not yet counted are read
+      contrastStatistics_.imagesArrived(keys);
+      expandDisplayRange(latest);
+   }
+
+   /**
+    * Add image keys to the axes index and display model, without touching
+    * the scrollbars. Images may be registered from the image arrival thread
+    * and from callers of the bulk methods, so this is done one at a time
+    *
+    * @return the keys, in order. They are gathered as they are registered,
+    * so iterables that can only be iterated once can be passed
+    */
+   private List<HashMap<String, Object>> registerImageKeys(
+           Iterable<? extends HashMap<String, Object>> axesPositionsList) {
+      List<HashMap<String, Object>> keys = new ArrayList<HashMap<String, Object>>();
+      for (HashMap<String, Object> axesPositions : axesPositionsList) {
+         keys.add(axesPositions);
+      }
+      synchronized (imageKeysLock_) {
+         displayModel_.updateDisplayBounds();
+         // This will go on to update the GUI as needed
+         displayModel_.addImageKeys(keys);
+      }
+      return keys;
+   }
+
+   /**
+    * Expand the scrollbars to all images registered so far with a single
+    * coalesced GUI update, rather than one event per image
+    *
+    * @param position where to move the scrollbars afterwards
+    */
+   private void expandDisplayRange(HashMap<String, Object> position) {
+      HashMap<String, Object> mins = displayModel_.getAxesIndex().getAxisMins();
+      mins.putAll(displayModel_.getStringAxisFirstValues());
+      HashMap<String, Object> maxs = displayModel_.getAxesIndex().getAxisMaxs();
+      maxs.putAll(displayModel_.getStringAxisLastValues());
+      List<HashMap<String, Object>> events = new ArrayList<HashMap<String, Object>>();
+      events.add(mins);
+      events.add(maxs);
+      events.add(position);
+      edtRunnablePool_.invokeLaterWithCoalescence(
+              new NDViewer.ExpandDisplayRangeCoalescentRunnable(events));
+   }
+
    @Override
    public void addSetImageHook(Consumer<HashMap<String, Object>> hook) {
       setImageHooks_.add(hook);
@@ -257,6 +388,10 @@ public class NDViewer implements NDViewerAPI {
       //Set channel
       displayModel_.scrollbarsMoved(axes);
       guiManager_.updateActiveChannelCheckboxes();
+      if (fromHuman) {
+         // Load the planes the user is likely to scroll to next
+         guiManager_.onAxesPositionsChanged(displayModel_.copyViewCoords());
+      }
 
       //run hooks
       for (Consumer<HashMap<String, Object>> hook : setImageHooks_) {
@@ -279,10 +414,106 @@ public class NDViewer implements NDViewerAPI {
    }
 
    public void update() {
-      if (displayCalculationExecutor_ == null) {
+      DisplayScheduler scheduler = displayScheduler_;
+      if (displayCalculationExecutor_ == null || scheduler == null) {
          return; // Not yet initialized
       }
-      displayCalculationExecutor_.invokeAsLateAsPossibleWithCoalescence(new DisplayImageComputationRunnable());
+      DisplayImageComputationRunnable r = new DisplayImageComputationRunnable();
+      latestDisplayRequest_ = r;
+      if (guiManager_ != null && r.view_ != null) {
+         // Don't keep waiting on pixels for a view that is no longer wanted
+         guiManager_.cancelObsoleteImageFetches(r.view_);
+      }
+      scheduler.requestFrame(r);
+   }
+
+   /**
+    * Set the rate at which display frames are rendered when images arrive or
+    * the view changes faster than that.
+    *
+    * @param fps frames per second
+    */
+   public void setTargetDisplayFPS(double fps) {
+      displayScheduler_.setTargetFPS(fps);
+   }
+
+   /**
+    * @return scheduler of display frames, which also counts rendered,
+    * dropped and late frames
+    */
+   public DisplayScheduler getDisplayScheduler() {
+      return displayScheduler_;
+   }
+
+   /**
+    * Set how much memory the images, composited tiles and histograms cached by
+    * all viewers in the process may take together. Defaults to the smaller of
+    * 512 MB and an eighth of the maximum heap size.
+    *
+    * @param maxBytes budget in bytes
+    */
+   public static void setImageCacheBudget(long maxBytes) {
+      DisplayImageCache.setSharedMaxBytes(maxBytes);
+   }
+
+   /**
+    * Count histograms from a sample of the pixels of large images rather
+    * than from every pixel, which makes autoscaling and the histogram display
+    * cheaper at the cost of some accuracy.
+    *
+    * @param accuracy target error of percentiles (and thus autoscaled
+    *                 contrast), as a fraction of all pixels. 0 to count every
+    *                 pixel
+    * @param sampling how to choose the pixels to count
+    */
+   public void setHistogramAccuracy(double accuracy, ChannelHistogram.Sampling sampling) {
+      guiManager_.setHistogramAccuracy(accuracy, sampling);
+      update();
+   }
+
+   /**
+    * When the view is only panned, shift what is already shown and read just
+    * the newly exposed strips, rather than reading the whole view again. On
+    * by default.
+    *
+    * @param incremental whether to pan incrementally
+    */
+   public void setIncrementalPanning(boolean incremental) {
+      guiManager_.setIncrementalPanning(incremental);
+   }
+
+   /**
+    * While the images of the view are being read, show an upscaled coarser
+    * resolution level of it. On by default.
+    *
+    * @param progressive whether to show coarser levels while loading
+    */
+   public void setProgressiveRendering(boolean progressive) {
+      guiManager_.setProgressiveRendering(progressive);
+   }
+
+   /**
+    * Read planes ahead of the scrollbar in the direction it is being moved,
+    * so that they are cached by the time they are shown. On by default.
+    *
+    * @param enabled        whether to prefetch planes
+    * @param maxPlanesAhead upper limit on the number of planes prefetched
+    *                       ahead of the scrollbar
+    */
+   public void setPrefetching(boolean enabled, int maxPlanesAhead) {
+      guiManager_.setPrefetching(enabled, maxPlanesAhead);
+   }
+
+   /**
+    * Map the raw pixels of grayscale channels straight to RGB through a
+    * lookup table per channel, rather than through an intermediate 8 bit
+    * image. On by default.
+    *
+    * @param direct whether to render through direct lookup tables
+    */
+   public void setDirectLUTRendering(boolean direct) {
+      guiManager_.setDirectLUTRendering(direct);
+      update();
    }
 
    public ViewerCanvas getCanvas() {
@@ -347,8 +578,7 @@ public class NDViewer implements NDViewerAPI {
 
    public void redrawOverlay() {
       //this will automatically trigger overlay redrawing in a coalescent fashion
-      displayCalculationExecutor_.invokeAsLateAsPossibleWithCoalescence(
-            new DisplayImageComputationRunnable());
+      update();
    }
 
    public double getMagnification() {
@@ -494,9 +724,15 @@ public class NDViewer implements NDViewerAPI {
       private final List<String> activeChannels = new ArrayList<String>();
 
       ExpandDisplayRangeCoalescentRunnable(HashMap<String, Object> axisPosisitons) {
-         newIamgeEvents.add(axisPosisitons);
-         if (axisPosisitons.containsKey(NDViewer.CHANNEL_AXIS)) {
-            activeChannels.add((String) axisPosisitons.get(NDViewer.CHANNEL_AXIS));
+         this(Collections.singletonList(axisPosisitons));
+      }
+
+      ExpandDisplayRangeCoalescentRunnable(List<HashMap<String, Object>> axisPositionsList) {
+         for (HashMap<String, Object> axisPosisitons : axisPositionsList) {
+            newIamgeEvents.add(axisPosisitons);
+            if (axisPosisitons.containsKey(NDViewer.CHANNEL_AXIS)) {
+               activeChannels.add((String) axisPosisitons.get(NDViewer.CHANNEL_AXIS));
+            }
          }
       }
 
@@ -507,10 +743,10 @@ public class NDViewer implements NDViewerAPI {
 
       @Override
       public CoalescentRunnable coalesceWith(CoalescentRunnable another) {
-         newIamgeEvents.addAll(
-                 ((ExpandDisplayRangeCoalescentRunnable) another).newIamgeEvents);
-         activeChannels.addAll(((ExpandDisplayRangeCoalescentRunnable) another).activeChannels);
-         return this;
+         // Build a new instance, this one may be retried or already running
+         List<HashMap<String, Object>> events = new ArrayList<>(newIamgeEvents);
+         events.addAll(((ExpandDisplayRangeCoalescentRunnable) another).newIamgeEvents);
+         return new ExpandDisplayRangeCoalescentRunnable(events);
       }
 
       @Override
@@ -555,6 +791,16 @@ public class NDViewer implements NDViewerAPI {
       new Thread(new Runnable() {
          @Override
          public void run() {
+            // Described before the data source is closed, to match saved histograms to the dataset
+            File histogramSidecar = histogramSidecar_;
+            String diskLocation = null;
+            int[] bounds = null;
+            int bitDepth = 0;
+            if (histogramSidecar != null) {
+               diskLocation = dataSource_.getDiskLocation();
+               bounds = dataSource_.getBounds();
+               bitDepth = getDatasetBitDepth();
+            }
             try {
                if (acq_ != null) {
                   //Finish acquisition on different thread to not slow EDT
@@ -572,17 +818,33 @@ public class NDViewer implements NDViewerAPI {
 
                //make everything else close
 
+               imageArrivals_.shutdown();
+               contrastStatistics_.shutdown();
+               if (histogramSidecar != null) {
+                  try {
+                     // Fingerprinted once the dataset has been closed, and its files are final
+                     guiManager_.getHistogramCache().save(histogramSidecar,
+                             HistogramCache.datasetFingerprint(diskLocation, bounds, bitDepth));
+                  } catch (IOException ex) {
+                     System.err.println("Couldn't save histograms to " + histogramSidecar);
+                     ex.printStackTrace();
+                  }
+               }
                guiManager_.shutdown();
 
+               displayScheduler_.shutdownNow();
                displayCalculationExecutor_.shutdownNow();
                overlayCalculationExecutor_.shutdownNow();
+               histogramCalculationExecutor_.shutdownNow();
 
                setImageHooks_ = null;
                dataSource_ = null;
                displayModel_ = null;
                edtRunnablePool_ = null;
+               displayScheduler_ = null;
                displayCalculationExecutor_ = null;
                overlayCalculationExecutor_ = null;
+               histogramCalculationExecutor_ = null;
                acq_ = null;
                closed_ = true;
             }
@@ -626,26 +888,99 @@ public class NDViewer implements NDViewerAPI {
          if (guiManager_ == null) {
             return; // initialization
          }
+         // Show a coarser resolution level first if the requested one has to be loaded
+         DataViewCoords preview = guiManager_.getPreviewView(view_);
+         if (preview != null) {
+            Image previewImg = guiManager_.makeOrGetImage(preview);
+            if (previewImg == null) {
+               return; // closed, or made obsolete by a newer view
+            }
+            edtRunnablePool_.invokeAsLateAsPossibleWithCoalescence(new CanvasRepaintRunnable(previewImg,
+                    guiManager_.getHistograms(), preview, guiManager_.getLatestTags()));
+            if (latestDisplayRequest_ != this) {
+               return; // Don't bother refining a view that is no longer wanted
+            }
+         }
          //This is where most of the calculation of creating a display image happens
          Image img = guiManager_.makeOrGetImage(view_);
+         if (img == null) {
+            return; // closed, or made obsolete by a newer view
+         }
          JSONObject tags = guiManager_.getLatestTags();
          currentMetadata_ = tags;
 
-         HashMap<String, int[]> channelHistograms = guiManager_.getHistograms();
+         HashMap<String, DisplayHistogram> channelHistograms = guiManager_.getHistograms();
          edtRunnablePool_.invokeAsLateAsPossibleWithCoalescence(new CanvasRepaintRunnable(img,
                  channelHistograms, view_, tags));
+         CoalescentExecutor histogramExecutor = histogramCalculationExecutor_;
+         if (histogramExecutor != null) {
+            histogramExecutor.submitWithCoalescence(new HistogramComputationRunnable());
+         }
          //now send expensive overlay computation to overlay creation thread
       }
    }
 
+   /**
+    * Counts the histograms the last frame was rendered without, off the
+    * render path, and hands them to the contrast panel
+    */
+   private class HistogramComputationRunnable implements CoalescentRunnable {
+
+      @Override
+      public Class<?> getCoalescenceClass() {
+         return this.getClass();
+      }
+
+      @Override
+      public CoalescentRunnable coalesceWith(CoalescentRunnable later) {
+         return later;
+      }
+
+      @Override
+      public void run() {
+         if (guiManager_ == null) {
+            return;
+         }
+         HashMap<String, DisplayHistogram> hists = guiManager_.computeDeferredHistograms();
+         DisplayCoalescentEDTRunnablePool edtPool = edtRunnablePool_;
+         if (hists != null && edtPool != null) {
+            edtPool.invokeAsLateAsPossibleWithCoalescence(new HistogramUpdateRunnable(hists));
+         }
+      }
+   }
+
+   private class HistogramUpdateRunnable implements CoalescentRunnable {
+
+      final HashMap<String, DisplayHistogram> hists_;
+
+      public HistogramUpdateRunnable(HashMap<String, DisplayHistogram> hists) {
+         hists_ = hists;
+      }
+
+      @Override
+      public Class<?> getCoalescenceClass() {
+         return this.getClass();
+      }
+
+      @Override
+      public CoalescentRunnable coalesceWith(CoalescentRunnable later) {
+         return later;
+      }
+
+      @Override
+      public void run() {
+         guiManager_.updateHistogramData(hists_);
+      }
+   }
+
    private class CanvasRepaintRunnable implements CoalescentRunnable {
 
       final Image img_;
       DataViewCoords view_;
-      HashMap<String, int[]> hists_;
+      HashMap<String, DisplayHistogram> hists_;
       JSONObject imageMD_;
 
-      public CanvasRepaintRunnable(Image img, HashMap<String, int[]> hists,
+      public CanvasRepaintRunnable(Image img, HashMap<String, DisplayHistogram> hists,
                                    DataViewCoords view, JSONObject imageMD) {
          img_ = img;
          view_ = view;